@@ -0,0 +1,96 @@
+package nachos.bench;
+
+/**
+ * A minimal microbenchmark harness. A benchmark is a set of named
+ * operations, each of which is run repeatedly until the JVM has had a chance
+ * to compile it, and is then timed over several measurement rounds.
+ * 
+ * <p>
+ * Every operation returns a value derived from the work it did, which the
+ * harness accumulates so that the JIT compiler cannot discard the work as
+ * dead code.
+ */
+public abstract class Benchmark {
+	/**
+	 * Allocate a new benchmark.
+	 * 
+	 * @param name the name printed before the benchmark's results.
+	 */
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * A single timed operation.
+	 */
+	public interface Operation {
+		/**
+		 * Perform one invocation of the operation.
+		 * 
+		 * @return a value derived from the work done.
+		 */
+		public long run();
+	}
+
+	/**
+	 * Time an operation and print how long each invocation took, on average.
+	 * 
+	 * @param label the name of the operation.
+	 * @param opsPerRun the number of basic operations each invocation
+	 * performs, used to report the time per basic operation.
+	 * @param op the operation to time.
+	 */
+	public void measure(String label, int opsPerRun, Operation op) {
+		for (int i = 0; i < warmupRounds; i++)
+			round(op);
+
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		for (int i = 0; i < measureRounds; i++) {
+			long elapsed = round(op);
+			best = Math.min(best, elapsed);
+			total += elapsed;
+		}
+
+		double ops = (double) invocationsPerRound * opsPerRun;
+		System.out.println(name + "." + label + ": "
+				+ format(total / measureRounds / ops) + " ns/op avg, "
+				+ format(best / ops) + " ns/op best");
+	}
+
+	private long round(Operation op) {
+		long start = System.nanoTime();
+		for (int i = 0; i < invocationsPerRound; i++)
+			sink += op.run();
+		return System.nanoTime() - start;
+	}
+
+	private static String format(double ns) {
+		return String.valueOf(Math.round(ns * 100) / 100.0);
+	}
+
+	/**
+	 * Run every operation in this benchmark.
+	 */
+	public abstract void run();
+
+	/**
+	 * Return the accumulated results of every operation run so far. Printing
+	 * this keeps the operations' results live.
+	 * 
+	 * @return the sum of every value returned by an operation.
+	 */
+	public long getSink() {
+		return sink;
+	}
+
+	private String name;
+	private long sink = 0;
+
+	/** Number of untimed rounds run before measuring an operation. */
+	public int warmupRounds = 5;
+	/** Number of timed rounds. */
+	public int measureRounds = 10;
+	/** Number of times an operation is invoked in each round. */
+	public int invocationsPerRound = 1000;
+}
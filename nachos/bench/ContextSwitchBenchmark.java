@@ -0,0 +1,208 @@
+package nachos.bench;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares the ways a TCB can hand the processor to another TCB: waiting on
+ * the TCB's monitor, as TCBs originally did; waiting on a lock and
+ * condition, as with <tt>TCB.directHandoff = false</tt>; and parking, with
+ * and without spinning first, as with the default direct handoff. Two Java
+ * threads switch back and forth the way <tt>TCB.contextSwitch()</tt> does,
+ * without the rest of Nachos.
+ */
+public class ContextSwitchBenchmark extends Benchmark {
+	/**
+	 * Allocate a new context switch benchmark.
+	 */
+	public ContextSwitchBenchmark() {
+		super("contextSwitch");
+	}
+
+	public void run() {
+		measure("monitor", new Factory() {
+			public Side create() {
+				return new MonitorSide();
+			}
+		});
+		measure("lock", new Factory() {
+			public Side create() {
+				return new LockSide();
+			}
+		});
+		measure("park", new Factory() {
+			public Side create() {
+				return new ParkSide(0);
+			}
+		});
+
+		// like TCB, don't spin when the other thread cannot run meanwhile
+		if (Runtime.getRuntime().availableProcessors() == 1) {
+			System.out.println("contextSwitch.spinPark: skipped on one "
+					+ "processor");
+			return;
+		}
+
+		measure("spinPark", new Factory() {
+			public Side create() {
+				return new ParkSide(1 << 14);
+			}
+		});
+	}
+
+	/**
+	 * Time <tt>numSwitches</tt> switches between two threads using one kind of
+	 * handoff, and print the best round.
+	 */
+	private void measure(String label, Factory factory) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < warmupRounds + measureRounds; i++) {
+			long elapsed = pingPong(factory.create(), factory.create(),
+					numSwitches / 2);
+			if (i >= warmupRounds)
+				best = Math.min(best, elapsed);
+		}
+
+		double nsPerSwitch = (double) best / numSwitches;
+		System.out.println("contextSwitch." + label + ": "
+				+ Math.round(nsPerSwitch) + " ns/switch, "
+				+ Math.round(1e9 / nsPerSwitch) + " switches/s");
+	}
+
+	/**
+	 * Switch from this thread to another thread and back <i>n</i> times.
+	 */
+	private static long pingPong(final Side a, final Side b, final int n) {
+		a.thread = Thread.currentThread();
+		a.running = true;
+
+		b.thread = new Thread(new Runnable() {
+			public void run() {
+				b.await();
+				for (int i = 1; i < n; i++)
+					switchTo(b, a);
+				a.wake();
+			}
+		});
+		b.thread.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			switchTo(a, b);
+		long elapsed = System.nanoTime() - start;
+
+		try {
+			b.thread.join();
+		}
+		catch (InterruptedException e) {
+		}
+
+		return elapsed;
+	}
+
+	/**
+	 * Switch the way <tt>TCB.contextSwitch()</tt> does: clear the running
+	 * flag of the current thread, wake the next one, and wait.
+	 */
+	private static void switchTo(Side previous, Side next) {
+		previous.running = false;
+		next.wake();
+		previous.await();
+	}
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args ignored.
+	 */
+	public static void main(String[] args) {
+		new ContextSwitchBenchmark().run();
+	}
+
+	private interface Factory {
+		Side create();
+	}
+
+	/**
+	 * One of the two threads, like a TCB: a running flag, and a way to wait
+	 * for it and set it.
+	 */
+	private static abstract class Side {
+		abstract void await();
+
+		abstract void wake();
+
+		volatile boolean running = false;
+
+		Thread thread;
+	}
+
+	private static class MonitorSide extends Side {
+		synchronized void await() {
+			while (!running) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}
+
+		synchronized void wake() {
+			running = true;
+			notify();
+		}
+	}
+
+	private static class LockSide extends Side {
+		void await() {
+			lock.lock();
+			try {
+				while (!running)
+					wakeUp.awaitUninterruptibly();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		void wake() {
+			lock.lock();
+			try {
+				running = true;
+				wakeUp.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private ReentrantLock lock = new ReentrantLock();
+
+		private Condition wakeUp = lock.newCondition();
+	}
+
+	private static class ParkSide extends Side {
+		ParkSide(int spinLimit) {
+			this.spinLimit = spinLimit;
+		}
+
+		void await() {
+			for (int i = 0; i < spinLimit && !running; i++)
+				;
+
+			while (!running)
+				LockSupport.park(this);
+		}
+
+		void wake() {
+			running = true;
+			LockSupport.unpark(thread);
+		}
+
+		private int spinLimit;
+	}
+
+	private static final int numSwitches = 200000;
+}
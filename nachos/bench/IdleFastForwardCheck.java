@@ -0,0 +1,140 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Checks that skipping ahead while no thread is ready, as
+ * <tt>Interrupt.idleFastForward</tt> does, is invisible to the schedulers
+ * that account for the time threads run. A lone thread sleeps in
+ * <tt>Alarm.waitUntil()</tt> over and over, and after each sleep records
+ * its level under the multi-level feedback queue scheduler, or its virtual
+ * runtime under the completely fair scheduler. Each scheduler is run with
+ * fast-forward on and off, and the records must be the same.
+ * 
+ * <p>
+ * The thread runs for far less than a quantum between sleeps, so it should
+ * never leave level 0, and its virtual runtime should grow only by the few
+ * ticks it runs.
+ */
+public class IdleFastForwardCheck {
+	private IdleFastForwardCheck() {
+	}
+
+	/**
+	 * Run the sleeping thread under each scheduler, with fast-forward on and
+	 * off, print what it recorded, and exit with a nonzero status if the two
+	 * differ for any scheduler.
+	 * 
+	 * @param args optionally, the scratch directory (the current directory by
+	 * default).
+	 */
+	public static void main(String[] args) {
+		File directory = new File(args.length > 0 ? args[0] : ".");
+
+		int numFailed = 0;
+		for (int i = 0; i < schedulers.length; i++) {
+			String skipped = run(directory, schedulers[i], true);
+			String stepped = run(directory, schedulers[i], false);
+
+			String name = schedulers[i].substring(schedulers[i]
+					.lastIndexOf('.') + 1);
+			if (skipped != null && skipped.equals(stepped)) {
+				System.out.println("check." + name + ":" + skipped);
+			}
+			else {
+				System.out.println("check." + name + ": fast-forward"
+						+ skipped + ", stepping" + stepped + " FAILED");
+				numFailed++;
+			}
+		}
+
+		if (numFailed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Run the sleeping thread under a scheduler and return what it recorded,
+	 * or <tt>null</tt> if the simulation printed no record, in which case
+	 * everything it printed is shown.
+	 */
+	private static String run(File directory, String scheduler,
+			boolean fastForward) {
+		List<String> output = SimulationBenchmark.runKernel(directory,
+				SleepKernel.class, "ThreadedKernel.scheduler = " + scheduler
+						+ "\n" + "Interrupt.idleFastForward = " + fastForward
+						+ "\n" + "MultiLevelFeedbackScheduler.quanta = "
+						+ "300,600,1200\n");
+
+		for (int i = 0; i < output.size(); i++) {
+			if (output.get(i).startsWith(resultPrefix))
+				return output.get(i).substring(resultPrefix.length());
+		}
+
+		for (int i = 0; i < output.size(); i++)
+			System.out.println(output.get(i));
+		return null;
+	}
+
+	/**
+	 * A kernel whose main thread sleeps <tt>numSleeps</tt> times, then prints
+	 * what it recorded after each sleep, and the time.
+	 */
+	public static class SleepKernel extends ThreadedKernel {
+		/**
+		 * Allocate a new sleep kernel.
+		 */
+		public SleepKernel() {
+			super();
+		}
+
+		/**
+		 * Does nothing: the kernel's own tests would add threads of their
+		 * own.
+		 */
+		public void selfTest() {
+		}
+
+		/**
+		 * Sleep, and print the records.
+		 */
+		public void run() {
+			StringBuffer line = new StringBuffer(resultPrefix);
+
+			for (int i = 0; i < numSleeps; i++) {
+				alarm.waitUntil(sleepTicks);
+
+				boolean intStatus = Machine.interrupt().disable();
+				line.append(" " + record(KThread.currentThread()));
+				Machine.interrupt().restore(intStatus);
+			}
+
+			line.append(" (time " + Machine.timer().getTime() + ")");
+			System.out.println(line);
+		}
+
+		private static String record(KThread thread) {
+			if (scheduler instanceof MultiLevelFeedbackScheduler)
+				return "level "
+						+ ((MultiLevelFeedbackScheduler) scheduler)
+								.getLevel(thread);
+			else
+				return "vruntime "
+						+ ((CompletelyFairScheduler) scheduler)
+								.getVirtualRuntime(thread);
+		}
+	}
+
+	private static final String resultPrefix = "slept";
+
+	private static final int numSleeps = 5;
+
+	private static final long sleepTicks = 1000;
+
+	private static final String[] schedulers = {
+			"nachos.threads.MultiLevelFeedbackScheduler",
+			"nachos.threads.CompletelyFairScheduler" };
+}
@@ -0,0 +1,59 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * Measures how quickly the processor executes user instructions, by timing a
+ * complete simulation of a user program. The program is run once with no
+ * debug flags, so that the processor uses its untraced loop, and once with
+ * the <tt>M</tt> flag, so that it uses the traced loop.
+ * 
+ * <p>
+ * The program named on the command line must not read from the console,
+ * except that a <tt>q</tt> is supplied for the kernel's self test.
+ */
+public class InterpreterBenchmark extends SimulationBenchmark {
+	/**
+	 * Allocate a new interpreter benchmark.
+	 * 
+	 * @param program the name of the COFF file to run.
+	 */
+	public InterpreterBenchmark(String program) {
+		super("interpreter");
+
+		this.program = program;
+	}
+
+	public void run() {
+		// a first run finds out how many instructions are executed
+		final int instructions = (int) simulate(program, new String[] {}, "q");
+		Lib.assertTrue(instructions > 0, "no user ticks reported");
+
+		measure("untraced", instructions, new Operation() {
+			public long run() {
+				return simulate(program, new String[] {}, "q");
+			}
+		});
+		measure("traced", instructions, new Operation() {
+			public long run() {
+				return simulate(program, new String[] { "-d", "M" }, "q");
+			}
+		});
+	}
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args the name of the COFF file to run, <tt>sort.coff</tt> by
+	 * default.
+	 */
+	public static void main(String[] args) {
+		InterpreterBenchmark bench = new InterpreterBenchmark(
+				args.length > 0 ? args[0] : "sort.coff");
+
+		bench.run();
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	private String program;
+}
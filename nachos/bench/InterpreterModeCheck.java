@@ -0,0 +1,170 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.ThreadedKernel;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Checks that every way the processor can execute user instructions gives
+ * the same result. A hand-assembled loop is run to completion in a separate
+ * simulation for each combination of <tt>Processor.interpreter</tt>,
+ * <tt>Processor.superinstructions</tt>, and <tt>Processor.jit</tt>, and the
+ * sum it computes is compared with the sum the R3000 would compute.
+ * 
+ * <p>
+ * The loop is a delayed load, followed by a store, followed by an
+ * instruction that uses the loaded register:
+ * 
+ * <pre>
+ *         addiu $4, $0, 0x400
+ *         addiu $6, $0, 1000
+ * loop:   lw    $2, 0($4)
+ *         sw    $0, 8($4)
+ *         addu  $5, $5, $2
+ *         addiu $2, $0, 0
+ *         addiu $6, $6, -1
+ *         bne   $6, $0, loop
+ *         nop
+ *         syscall
+ * </pre>
+ * 
+ * <p>
+ * The store sits in the load delay slot, so the load must have finished by
+ * the time the <tt>addu</tt> reads <tt>$2</tt>. Since <tt>$2</tt> is cleared
+ * after each use, an <tt>addu</tt> that read it too early would add nothing.
+ * The loop runs often enough for the compiled-block tier to compile it.
+ */
+public class InterpreterModeCheck {
+	private InterpreterModeCheck() {
+	}
+
+	/**
+	 * Run the loop under every execution mode, print the sum each one
+	 * computed, and exit with a nonzero status if any of them is wrong.
+	 * 
+	 * @param args optionally, the scratch directory (the current directory by
+	 * default).
+	 */
+	public static void main(String[] args) {
+		File directory = new File(args.length > 0 ? args[0] : ".");
+
+		int numFailed = 0;
+		for (int i = 0; i < modes.length; i++) {
+			List<String> output = SimulationBenchmark.runKernel(directory,
+					LoopKernel.class, "Machine.processor = true\n"
+							+ "Processor.numPhysPages = 2\n" + modes[i]);
+
+			String result = null;
+			for (int j = 0; j < output.size(); j++) {
+				if (output.get(j).startsWith(resultPrefix))
+					result = output.get(j).substring(resultPrefix.length());
+			}
+
+			String name = modes[i].trim().replace('\n', ',');
+			if (result == null) {
+				System.out.println("check." + name + ": no result");
+				for (int j = 0; j < output.size(); j++)
+					System.out.println(output.get(j));
+				numFailed++;
+			}
+			else if (!result.equals("" + expected)) {
+				System.out.println("check." + name + ": " + result
+						+ ", expected " + expected + " FAILED");
+				numFailed++;
+			}
+			else {
+				System.out.println("check." + name + ": " + result);
+			}
+		}
+
+		if (numFailed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * A kernel that loads the loop into physical memory, runs it in the main
+	 * thread, and prints the sum when it reaches the <tt>syscall</tt>.
+	 */
+	public static class LoopKernel extends ThreadedKernel {
+		/**
+		 * Allocate a new loop kernel.
+		 */
+		public LoopKernel() {
+			super();
+		}
+
+		/**
+		 * Does nothing: the kernel's own tests are not part of the check.
+		 */
+		public void selfTest() {
+		}
+
+		/**
+		 * Run the loop. Never returns: the simulation halts at the
+		 * <tt>syscall</tt>.
+		 */
+		public void run() {
+			final Processor processor = Machine.processor();
+
+			TranslationEntry[] pageTable = new TranslationEntry[2];
+			for (int i = 0; i < pageTable.length; i++)
+				pageTable[i] = new TranslationEntry(i, i, true, false, false,
+						false);
+			processor.setPageTable(pageTable);
+
+			byte[] memory = processor.getMemory();
+			for (int i = 0; i < program.length; i++)
+				Lib.bytesFromInt(memory, i * 4, program[i]);
+			Lib.bytesFromInt(memory, Processor.pageSize, value);
+
+			for (int i = 0; i < Processor.regPC; i++)
+				processor.writeRegister(i, 0);
+			processor.writeRegister(Processor.regPC, 0);
+
+			processor.setExceptionHandler(new Runnable() {
+				public void run() {
+					int cause = processor.readRegister(Processor.regCause);
+					if (cause == Processor.exceptionSyscall)
+						System.out.println(resultPrefix
+								+ processor.readRegister(5));
+					else
+						System.out.println("exception "
+								+ Processor.exceptionNames[cause].trim());
+
+					Machine.halt();
+				}
+			});
+
+			processor.run();
+		}
+	}
+
+	private static final String resultPrefix = "sum ";
+
+	private static final int iterations = 1000, value = 5,
+			expected = iterations * value;
+
+	private static final int[] program = { 0x24040400, // addiu $4, $0, 0x400
+			0x24060000 | iterations, // addiu $6, $0, iterations
+			0x8c820000, // lw $2, 0($4)
+			0xac800008, // sw $0, 8($4)
+			0x00a22821, // addu $5, $5, $2
+			0x24020000, // addiu $2, $0, 0
+			0x24c6ffff, // addiu $6, $6, -1
+			0x14c0fffa, // bne $6, $0, loop
+			0x00000000, // nop
+			0x0000000c, // syscall
+	};
+
+	private static final String[] modes = {
+			"Processor.interpreter = switch\n",
+			"Processor.interpreter = threaded\n",
+			"Processor.interpreter = threaded\n"
+					+ "Processor.superinstructions = true\n",
+			"Processor.interpreter = switch\n" + "Processor.jit = true\n",
+			"Processor.interpreter = threaded\n"
+					+ "Processor.superinstructions = true\n"
+					+ "Processor.jit = true\n" };
+}
@@ -0,0 +1,172 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * Compares the pending-interrupt queue the interrupt controller used to keep,
+ * a <tt>TreeSet</tt> of newly allocated entries, against the primitive-array
+ * heap in <tt>InterruptQueue</tt>. Both are driven by the same mix of events
+ * a user program doing I/O causes: a timer with a random period, console
+ * reads and writes, and network receive polls.
+ */
+public class InterruptQueueBenchmark extends Benchmark {
+	/**
+	 * Allocate a new interrupt queue benchmark.
+	 */
+	public InterruptQueueBenchmark() {
+		super("interrupts");
+	}
+
+	public void run() {
+		invocationsPerRound = 10;
+
+		measure("treeSet", numEvents, new Operation() {
+			public long run() {
+				return simulateTreeSet(numEvents);
+			}
+		});
+		measure("heap", numEvents, new Operation() {
+			public long run() {
+				return simulateHeap(numEvents);
+			}
+		});
+	}
+
+	/**
+	 * Return the delay until the next interrupt of the specified kind, drawn
+	 * from a fixed pseudo-random sequence so that both queues see the same
+	 * events.
+	 */
+	private static long delay(int kind, long seed) {
+		switch (kind) {
+		case timer:
+			// like Timer, a period of around Stats.TimerTicks
+			return Stats.TimerTicks + (seed % (Stats.TimerTicks / 10)) + 1;
+		case consoleRead:
+		case consoleWrite:
+			return Stats.ConsoleTime;
+		default:
+			return Stats.NetworkTime;
+		}
+	}
+
+	private static long next(long seed) {
+		return (seed * 6364136223846793005L + 1442695040888963407L) >>> 1;
+	}
+
+	private long simulateTreeSet(int numEvents) {
+		TreeSet<PendingInterrupt> pending = new TreeSet<PendingInterrupt>();
+		long seed = 1;
+		long id = 0;
+
+		for (int kind = 0; kind < numKinds; kind++)
+			pending.add(new PendingInterrupt(delay(kind, seed), id++, kind));
+
+		long time = 0;
+		long sum = 0;
+		for (int i = 0; i < numEvents; i++) {
+			PendingInterrupt next = pending.first();
+			pending.remove(next);
+
+			time = next.time;
+			sum = sum * 31 + next.kind;
+
+			seed = next(seed);
+			pending.add(new PendingInterrupt(time + delay(next.kind, seed),
+					id++, next.kind));
+		}
+
+		return sum + time;
+	}
+
+	private long simulateHeap(int numEvents) {
+		InterruptQueue pending = new InterruptQueue();
+		long seed = 1;
+
+		for (int kind = 0; kind < numKinds; kind++)
+			pending.add(delay(kind, seed), kindNames[kind], handlers[kind]);
+
+		long time = 0;
+		long sum = 0;
+		for (int i = 0; i < numEvents; i++) {
+			int next = pending.first();
+			time = pending.time(next);
+			Handler handler = (Handler) pending.handler(next);
+			pending.removeFirst();
+
+			sum = sum * 31 + handler.kind;
+
+			seed = next(seed);
+			pending.add(time + delay(handler.kind, seed),
+					kindNames[handler.kind], handler);
+		}
+
+		return sum + time;
+	}
+
+	/**
+	 * Check that both queues dispatch the same events in the same order,
+	 * then run the benchmark.
+	 * 
+	 * @param args ignored.
+	 */
+	public static void main(String[] args) {
+		InterruptQueueBenchmark bench = new InterruptQueueBenchmark();
+
+		Lib.assertTrue(bench.simulateTreeSet(numEvents) == bench
+				.simulateHeap(numEvents));
+
+		bench.run();
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	/**
+	 * An entry in the old queue, ordered the same way: by time, then by the
+	 * order in which it was scheduled.
+	 */
+	private static class PendingInterrupt implements
+			Comparable<PendingInterrupt> {
+		PendingInterrupt(long time, long id, int kind) {
+			this.time = time;
+			this.id = id;
+			this.kind = kind;
+		}
+
+		public int compareTo(PendingInterrupt toOccur) {
+			if (time != toOccur.time)
+				return (time < toOccur.time) ? -1 : 1;
+			else if (id != toOccur.id)
+				return (id < toOccur.id) ? -1 : 1;
+			else
+				return 0;
+		}
+
+		long time, id;
+
+		int kind;
+	}
+
+	private static class Handler implements Runnable {
+		Handler(int kind) {
+			this.kind = kind;
+		}
+
+		public void run() {
+		}
+
+		final int kind;
+	}
+
+	private static final int timer = 0, consoleRead = 1, consoleWrite = 2,
+			networkReceive = 3;
+	private static final int numKinds = 4;
+	private static final String[] kindNames = { "timer", "console read",
+			"console write", "network recv" };
+	private static final int numEvents = 100000;
+
+	private final Handler[] handlers = { new Handler(timer),
+			new Handler(consoleRead), new Handler(consoleWrite),
+			new Handler(networkReceive) };
+}
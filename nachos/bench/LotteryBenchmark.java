@@ -0,0 +1,158 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+import java.io.File;
+
+/**
+ * Compares the lottery scheduler with the round-robin and priority schedulers
+ * on a ready queue of thousands of threads. A quarter of the threads have one
+ * ticket (or priority 1), a quarter two, a quarter three, and a quarter four.
+ * 
+ * <p>
+ * The threads are created but never forked, since there can only be
+ * <tt>TCB.maxThreads</tt> platform threads at once. Instead, the benchmark
+ * dispatches them the way <tt>KThread</tt> does, taking the next thread from
+ * the ready queue and putting it back as if it had yielded. It times each
+ * dispatch, and reports the share of the dispatches that went to each quarter,
+ * and how many threads were never dispatched at all.
+ */
+public class LotteryBenchmark extends Benchmark {
+	/**
+	 * Allocate a new lottery benchmark for the current scheduler.
+	 */
+	public LotteryBenchmark() {
+		super(prefix());
+	}
+
+	public void run() {
+		int[] numThreads = { 1000, 4000 };
+		for (int i = 0; i < numThreads.length; i++) {
+			measureDispatch(numThreads[i]);
+			measureFairness(numThreads[i]);
+		}
+	}
+
+	/**
+	 * Time dispatching one of <i>numThreads</i> ready threads.
+	 */
+	private void measureDispatch(int numThreads) {
+		final ThreadQueue readyQueue = newReadyQueue(numThreads);
+
+		measure("dispatch." + numThreads, 1, new Operation() {
+			public long run() {
+				KThread next = readyQueue.nextThread();
+				readyQueue.waitForAccess(next);
+
+				return next.hashCode();
+			}
+		});
+	}
+
+	/**
+	 * Dispatch <i>numThreads</i> ready threads 100 times as often as there are
+	 * threads, and print the share each quarter of them received.
+	 */
+	private void measureFairness(int numThreads) {
+		ThreadQueue readyQueue = newReadyQueue(numThreads);
+
+		int[] dispatches = new int[numThreads];
+		int numDispatches = numThreads * 100;
+		for (int i = 0; i < numDispatches; i++) {
+			KThread next = readyQueue.nextThread();
+			dispatches[Integer.parseInt(next.getName())]++;
+			readyQueue.waitForAccess(next);
+		}
+
+		long[] shares = new long[numClasses];
+		int numStarved = 0;
+		for (int i = 0; i < numThreads; i++) {
+			shares[i % numClasses] += dispatches[i];
+			if (dispatches[i] == 0)
+				numStarved++;
+		}
+
+		StringBuffer line = new StringBuffer();
+		for (int i = 0; i < numClasses; i++)
+			line.append(" " + percent(shares[i], numDispatches));
+
+		System.out.println(prefix() + ".fairness." + numThreads + ":" + line
+				+ " (tickets" + ticketShares() + "), " + numStarved
+				+ " threads starved");
+	}
+
+	/**
+	 * Return a queue that does not transfer priority, like the ready queue,
+	 * with <i>numThreads</i> threads waiting, named by their index.
+	 */
+	private static ThreadQueue newReadyQueue(int numThreads) {
+		ThreadQueue readyQueue = scheduler().newThreadQueue(false);
+
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread().setName("" + i);
+			scheduler().setPriority(thread, i % numClasses + 1);
+			readyQueue.waitForAccess(thread);
+		}
+
+		return readyQueue;
+	}
+
+	private static String ticketShares() {
+		int total = numClasses * (numClasses + 1) / 2;
+
+		String shares = "";
+		for (int i = 0; i < numClasses; i++)
+			shares += " " + percent(i + 1, total);
+		return shares;
+	}
+
+	private static String percent(long part, long whole) {
+		return (Math.round(part * 1000.0 / whole) / 10.0) + "%";
+	}
+
+	/**
+	 * Return the name printed before each result: the benchmark's name,
+	 * followed by that of the scheduler.
+	 */
+	private static String prefix() {
+		return "lottery." + scheduler().getClass().getSimpleName();
+	}
+
+	private static Scheduler scheduler() {
+		return ThreadedKernel.scheduler;
+	}
+
+	/**
+	 * A kernel that runs the benchmark, using the scheduler named by
+	 * <tt>ThreadedKernel.scheduler</tt>.
+	 */
+	public static class LotteryKernel extends
+			SimulationBenchmark.BenchmarkKernel {
+		protected Benchmark newBenchmark() {
+			return new LotteryBenchmark();
+		}
+	}
+
+	/**
+	 * Run the benchmark in a simulation with each of the round-robin,
+	 * priority, and lottery schedulers, and print the results.
+	 * 
+	 * @param args optionally, the scratch directory (the current directory by
+	 * default).
+	 */
+	public static void main(String[] args) {
+		File directory = new File(args.length > 0 ? args[0] : ".");
+
+		for (int i = 0; i < schedulers.length; i++)
+			SimulationBenchmark.printKernelResults(directory,
+					LotteryKernel.class, "ThreadedKernel.scheduler = "
+							+ schedulers[i] + "\n", "lottery.");
+	}
+
+	private static final String[] schedulers = {
+			"nachos.threads.RoundRobinScheduler",
+			"nachos.threads.PriorityScheduler",
+			"nachos.threads.LotteryScheduler" };
+
+	private static final int numClasses = 4;
+}
@@ -0,0 +1,113 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compares the two ways the processor can move words and halfwords in and out
+ * of main memory: assembling them a byte at a time with
+ * <tt>Lib.bytesToInt()</tt> and <tt>Lib.bytesFromInt()</tt>, and reading
+ * them through a little-endian <tt>ByteBuffer</tt> view of the memory array.
+ */
+public class MemoryAccessBenchmark extends Benchmark {
+	/**
+	 * Allocate a new memory access benchmark over a memory the size of the
+	 * default physical memory.
+	 */
+	public MemoryAccessBenchmark() {
+		super("memory");
+
+		memory = new byte[Processor.pageSize * numPhysPages];
+		view = ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = 0; i < memory.length; i++)
+			memory[i] = (byte) (i * 31 + 7);
+
+		// a fixed, scattered sequence of word-aligned addresses
+		addresses = new int[numAccesses];
+		int addr = 0;
+		for (int i = 0; i < numAccesses; i++) {
+			addr = (addr + 0x2c4) % memory.length;
+			addresses[i] = addr & ~3;
+		}
+	}
+
+	public void run() {
+		measure("readWord.lib", numAccesses, new Operation() {
+			public long run() {
+				int sum = 0;
+				for (int i = 0; i < numAccesses; i++)
+					sum += Lib.bytesToInt(memory, addresses[i]);
+				return sum;
+			}
+		});
+		measure("readWord.view", numAccesses, new Operation() {
+			public long run() {
+				int sum = 0;
+				for (int i = 0; i < numAccesses; i++)
+					sum += view.getInt(addresses[i]);
+				return sum;
+			}
+		});
+		measure("readHalf.lib", numAccesses, new Operation() {
+			public long run() {
+				int sum = 0;
+				for (int i = 0; i < numAccesses; i++)
+					sum += Lib.bytesToInt(memory, addresses[i] + 2, 2);
+				return sum;
+			}
+		});
+		measure("readHalf.view", numAccesses, new Operation() {
+			public long run() {
+				int sum = 0;
+				for (int i = 0; i < numAccesses; i++)
+					sum += view.getShort(addresses[i] + 2);
+				return sum;
+			}
+		});
+		measure("writeWord.lib", numAccesses, new Operation() {
+			public long run() {
+				for (int i = 0; i < numAccesses; i++)
+					Lib.bytesFromInt(memory, addresses[i], i);
+				return memory[addresses[0]];
+			}
+		});
+		measure("writeWord.view", numAccesses, new Operation() {
+			public long run() {
+				for (int i = 0; i < numAccesses; i++)
+					view.putInt(addresses[i], i);
+				return memory[addresses[0]];
+			}
+		});
+	}
+
+	/**
+	 * Check that both access methods agree, including the sign extension of
+	 * halfwords, then run the benchmark.
+	 * 
+	 * @param args ignored.
+	 */
+	public static void main(String[] args) {
+		MemoryAccessBenchmark bench = new MemoryAccessBenchmark();
+
+		for (int i = 0; i < numAccesses; i++) {
+			int addr = bench.addresses[i];
+			Lib.assertTrue(Lib.bytesToInt(bench.memory, addr) == bench.view
+					.getInt(addr));
+			Lib.assertTrue(Lib.bytesToInt(bench.memory, addr, 2) == bench.view
+					.getShort(addr));
+		}
+
+		bench.run();
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	private static final int numPhysPages = 64;
+	private static final int numAccesses = 4096;
+
+	private byte[] memory;
+	private ByteBuffer view;
+	private int[] addresses;
+}
@@ -0,0 +1,148 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+import java.io.File;
+
+/**
+ * Measures priority donation in the priority scheduler, on lock queues with
+ * many waiters and on long chains of threads, each holding a lock and
+ * waiting for the next. The operations run inside a simulation, on threads
+ * that are created but never forked, with interrupts disabled.
+ */
+public class PriorityDonationBenchmark extends Benchmark {
+	/**
+	 * Allocate a new priority donation benchmark.
+	 */
+	public PriorityDonationBenchmark() {
+		super("donation");
+
+		invocationsPerRound = 10000;
+	}
+
+	public void run() {
+		int[] numWaiters = { 10, 100, 1000 };
+		for (int i = 0; i < numWaiters.length; i++)
+			measureHandoff(numWaiters[i]);
+
+		int[] depths = { 1, 10, 100 };
+		for (int i = 0; i < depths.length; i++)
+			measureChain(depths[i], 100);
+	}
+
+	/**
+	 * Time handing a lock to the first of <i>numWaiters</i> waiting threads,
+	 * while the previous holder starts waiting again with a new priority.
+	 */
+	private void measureHandoff(int numWaiters) {
+		final ThreadQueue queue = scheduler().newThreadQueue(true);
+
+		for (int i = 0; i < numWaiters; i++)
+			queue.waitForAccess(newThread(nextPriority()));
+
+		final KThread[] holder = { newThread(priorityLow) };
+		queue.acquire(holder[0]);
+
+		measure("handoff." + numWaiters, 1, new Operation() {
+			public long run() {
+				KThread previous = holder[0];
+				holder[0] = queue.nextThread();
+
+				scheduler().setPriority(previous, nextPriority());
+				queue.waitForAccess(previous);
+
+				return scheduler().getEffectivePriority(holder[0]);
+			}
+		});
+	}
+
+	/**
+	 * Time raising and lowering the priority of a thread waiting at the end of
+	 * a chain of <i>depth</i> locks, which changes the effective priority of
+	 * every thread in the chain. Every lock also has <i>numWaiters</i> other
+	 * threads waiting for it.
+	 */
+	private void measureChain(int depth, int numWaiters) {
+		KThread previous = null;
+		ThreadQueue lock = null;
+
+		for (int i = 0; i < depth; i++) {
+			KThread holder = newThread(priorityLow);
+			if (lock != null)
+				lock.waitForAccess(holder);
+
+			lock = scheduler().newThreadQueue(true);
+			lock.acquire(holder);
+
+			for (int j = 0; j < numWaiters; j++)
+				lock.waitForAccess(newThread(priorityMiddle));
+
+			previous = holder;
+		}
+
+		final KThread first = previous;
+		final KThread donor = newThread(priorityMiddle);
+		lock.waitForAccess(donor);
+
+		measure("chain." + depth, 1, new Operation() {
+			int priority = priorityMiddle;
+
+			public long run() {
+				priority = (priority == priorityHigh) ? priorityMiddle
+						: priorityHigh;
+				scheduler().setPriority(donor, priority);
+
+				return scheduler().getEffectivePriority(first);
+			}
+		});
+	}
+
+	private static KThread newThread(int priority) {
+		KThread thread = new KThread();
+		scheduler().setPriority(thread, priority);
+		return thread;
+	}
+
+	private int nextPriority() {
+		seed = seed * 1103515245 + 12345;
+		return priorityLow + ((seed >>> 16) & 0x7fff)
+				% (priorityHigh - priorityLow + 1);
+	}
+
+	private static Scheduler scheduler() {
+		return ThreadedKernel.scheduler;
+	}
+
+	/**
+	 * A kernel that runs the benchmark, using the scheduler named by
+	 * <tt>ThreadedKernel.scheduler</tt>.
+	 */
+	public static class DonationKernel extends
+			SimulationBenchmark.BenchmarkKernel {
+		protected Benchmark newBenchmark() {
+			return new PriorityDonationBenchmark();
+		}
+	}
+
+	/**
+	 * Run the benchmark in a simulation using the priority scheduler, and
+	 * print its results.
+	 * 
+	 * @param args optionally, the scratch directory (the current directory by
+	 * default) and the scheduler to use.
+	 */
+	public static void main(String[] args) {
+		File directory = new File(args.length > 0 ? args[0] : ".");
+		String scheduler = (args.length > 1) ? args[1]
+				: "nachos.threads.PriorityScheduler";
+
+		SimulationBenchmark.printKernelResults(directory,
+				DonationKernel.class, "ThreadedKernel.scheduler = " + scheduler
+						+ "\n", "donation.");
+	}
+
+	private static final int priorityLow = 1, priorityMiddle = 2,
+			priorityHigh = 7;
+
+	private int seed = 1;
+}
@@ -0,0 +1,166 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.File;
+
+/**
+ * Measures how long a thread that wakes up waits to run when 1000 other
+ * threads are always runnable, with the round-robin scheduler and the
+ * completely fair scheduler. The woken thread runs briefly, then sleeps
+ * again, using less than its fair share of the processor, like an interactive
+ * thread; the others run until they are preempted.
+ * 
+ * <p>
+ * The threads are created but never forked, since there can only be
+ * <tt>TCB.maxThreads</tt> platform threads at once. Instead, the benchmark
+ * plays the part of <tt>KThread</tt> and <tt>Alarm</tt>, on a simulated clock:
+ * it takes the next thread from the ready queue, lets it run for one timer
+ * interrupt after another until the scheduler preempts it, and wakes the
+ * sleeping thread at the first interrupt after it is due, calling the same
+ * scheduler hooks that they would. It reports the latency of each wakeup in
+ * simulated ticks, the least and most time any of the other threads got, and
+ * the host time each dispatch took.
+ */
+public class SchedulingLatencyBenchmark extends Benchmark {
+	/**
+	 * Allocate a new scheduling latency benchmark.
+	 */
+	public SchedulingLatencyBenchmark() {
+		super("latency");
+	}
+
+	public void run() {
+		simulate("RoundRobinScheduler", new RoundRobinScheduler());
+		simulate("CompletelyFairScheduler", new SimulatedFairScheduler());
+	}
+
+	/**
+	 * Run the threads under a scheduler for <tt>duration</tt> ticks, and print
+	 * the results.
+	 */
+	private void simulate(String label, Scheduler scheduler) {
+		now = 0;
+
+		ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("" + i);
+			scheduler.readyThread(threads[i]);
+			readyQueue.waitForAccess(threads[i]);
+		}
+
+		KThread sleeper = new KThread().setName("sleeper");
+		scheduler.readyThread(sleeper);
+		readyQueue.waitForAccess(sleeper);
+
+		long readySince = now, wakeTime = 0;
+		boolean sleeping = false;
+
+		long[] ran = new long[numThreads];
+		long numWakeups = 0, totalLatency = 0, maxLatency = 0;
+		long numSleeps = 0, numDispatches = 0;
+
+		long start = System.nanoTime();
+
+		while (now < duration) {
+			KThread next = readyQueue.nextThread();
+			scheduler.runningThread(next);
+			numDispatches++;
+
+			if (next == sleeper) {
+				// its first turn is not a wakeup
+				if (numSleeps > 0) {
+					long latency = now - readySince;
+					numWakeups++;
+					totalLatency += latency;
+					maxLatency = Math.max(maxLatency, latency);
+				}
+				numSleeps++;
+
+				// run briefly, then block; the next dispatch charges it
+				now += sleeperBurst;
+				sleeping = true;
+				// vary the phase of the wakeups relative to the slices
+				wakeTime = now + sleeperSleep + Lib.random(sleeperSleep / 10);
+				continue;
+			}
+
+			long started = now;
+			do {
+				// run until the next timer interrupt
+				now = (now / Stats.TimerTicks + 1) * Stats.TimerTicks;
+
+				if (sleeping && now >= wakeTime) {
+					sleeping = false;
+					scheduler.readyThread(sleeper);
+					readyQueue.waitForAccess(sleeper);
+					readySince = now;
+				}
+			} while (!scheduler.timerInterrupt());
+
+			ran[Integer.parseInt(next.getName())] += now - started;
+
+			scheduler.readyThread(next);
+			readyQueue.waitForAccess(next);
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		long minRan = Long.MAX_VALUE, maxRan = 0;
+		for (int i = 0; i < numThreads; i++) {
+			minRan = Math.min(minRan, ran[i]);
+			maxRan = Math.max(maxRan, ran[i]);
+		}
+
+		System.out.println("latency." + label + ": wakeup latency "
+				+ (numWakeups > 0 ? totalLatency / numWakeups : 0)
+				+ " ticks avg, " + maxLatency + " ticks max (" + numWakeups
+				+ " wakeups); other threads ran " + minRan + " to " + maxRan
+				+ " ticks; " + elapsed / numDispatches + " ns/dispatch");
+	}
+
+	/**
+	 * A completely fair scheduler that reads the benchmark's simulated clock.
+	 */
+	private static class SimulatedFairScheduler extends
+			CompletelyFairScheduler {
+		protected long getTime() {
+			return now;
+		}
+	}
+
+	/**
+	 * A kernel that runs the benchmark.
+	 */
+	public static class LatencyKernel extends
+			SimulationBenchmark.BenchmarkKernel {
+		protected Benchmark newBenchmark() {
+			return new SchedulingLatencyBenchmark();
+		}
+	}
+
+	/**
+	 * Run the benchmark in a simulation, and print its results.
+	 * 
+	 * @param args optionally, the scratch directory (the current directory by
+	 * default).
+	 */
+	public static void main(String[] args) {
+		File directory = new File(args.length > 0 ? args[0] : ".");
+
+		SimulationBenchmark.printKernelResults(directory, LatencyKernel.class,
+				"", "latency.");
+	}
+
+	/** The simulated time, in ticks. */
+	private static long now = 0;
+
+	private static final int numThreads = 1000;
+
+	private static final long duration = 20000000;
+
+	private static final int sleeperBurst = 100, sleeperSleep = 100000;
+}
@@ -0,0 +1,252 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.ThreadedKernel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A benchmark that times complete simulations. Each simulation runs in a
+ * separate JVM, so that every run starts from the same state.
+ * 
+ * <p>
+ * Must be run from a directory containing a <tt>nachos.conf</tt> for a kernel
+ * that can run user programs, such as <tt>proj2</tt>.
+ */
+public abstract class SimulationBenchmark extends Benchmark {
+	/**
+	 * Allocate a new simulation benchmark.
+	 * 
+	 * @param name the name printed before the benchmark's results.
+	 */
+	public SimulationBenchmark(String name) {
+		super(name);
+
+		warmupRounds = 1;
+		measureRounds = 3;
+		invocationsPerRound = 1;
+	}
+
+	/**
+	 * Run a user program to completion in a new JVM. Everything the
+	 * simulation prints is discarded.
+	 * 
+	 * @param program the name of the COFF file to run.
+	 * @param args extra Nachos command line arguments.
+	 * @param input the characters to type at the console.
+	 * @return the number of user ticks reported by the simulation, or -1 if
+	 * it reported none.
+	 */
+	protected long simulate(String program, String[] args, String input) {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		if (needsSecurityManagerOption())
+			command.add("-Djava.security.manager=allow");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("nachos.machine.Machine");
+		command.add("-x");
+		command.add(program);
+		for (int i = 0; i < args.length; i++)
+			command.add(args[i]);
+
+		long userTicks = -1;
+
+		try {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+
+			OutputStream stdin = process.getOutputStream();
+			stdin.write(input.getBytes());
+			stdin.close();
+
+			BufferedReader stdout = new BufferedReader(new InputStreamReader(
+					process.getInputStream()));
+			String line;
+			while ((line = stdout.readLine()) != null) {
+				if (line.startsWith("Ticks:")) {
+					int index = line.lastIndexOf("user ");
+					userTicks = Long.parseLong(line.substring(index + 5)
+							.trim());
+				}
+			}
+
+			process.waitFor();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not run Nachos: " + e);
+		}
+		catch (InterruptedException e) {
+			Lib.assertNotReached("interrupted");
+		}
+
+		return userTicks;
+	}
+
+	/**
+	 * Run Nachos in a new JVM with a kernel of its own, such as one that
+	 * times kernel operations from inside the simulation, and return what it
+	 * prints. The simulation needs no hardware other than the timer, and the
+	 * processor if the settings ask for it.
+	 * 
+	 * @param directory a scratch directory, in which <tt>nachos.conf</tt> is
+	 * written.
+	 * @param kernel the kernel to run.
+	 * @param settings extra lines for <tt>nachos.conf</tt>, which may name a
+	 * scheduler (the round-robin scheduler by default), or enable the
+	 * processor.
+	 * @return the lines printed by the simulation.
+	 */
+	static List<String> runKernel(File directory, Class<?> kernel,
+			String settings) {
+		// Config rejects keys given twice
+		if (settings.indexOf("ThreadedKernel.scheduler") < 0)
+			settings += "ThreadedKernel.scheduler = "
+					+ "nachos.threads.RoundRobinScheduler\n";
+		if (settings.indexOf("Machine.processor") < 0)
+			settings += "Machine.processor = false\n";
+
+		File conf = new File(directory, "nachos.conf");
+		try {
+			FileWriter writer = new FileWriter(conf);
+			writer.write("Machine.stubFileSystem = false\n"
+					+ "Machine.console = false\n" + "Machine.disk = false\n"
+					+ "Machine.bank = false\n" + "Machine.networkLink = false\n"
+					+ "NachosSecurityManager.fullySecure = false\n"
+					+ "Kernel.kernel = " + kernel.getName() + "\n" + settings);
+			writer.close();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not create " + conf);
+		}
+
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		if (needsSecurityManagerOption())
+			command.add("-Djava.security.manager=allow");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("nachos.machine.Machine");
+		command.add("-b");
+		command.add(directory.getPath());
+
+		List<String> output = new ArrayList<String>();
+		try {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+			process.getOutputStream().close();
+
+			BufferedReader stdout = new BufferedReader(new InputStreamReader(
+					process.getInputStream()));
+			String line;
+			while ((line = stdout.readLine()) != null)
+				output.add(line);
+
+			process.waitFor();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not run Nachos: " + e);
+		}
+		catch (InterruptedException e) {
+			Lib.assertNotReached("interrupted");
+		}
+
+		conf.delete();
+
+		return output;
+	}
+
+	/**
+	 * Run Nachos with a kernel of its own, as <tt>runKernel()</tt> does, and
+	 * print its results: the lines that start with <tt>prefix</tt>, and the
+	 * sink printed by a <tt>BenchmarkKernel</tt>. If there are no results,
+	 * print everything, to show what went wrong.
+	 * 
+	 * @param directory a scratch directory, in which <tt>nachos.conf</tt> is
+	 * written.
+	 * @param kernel the kernel to run.
+	 * @param settings extra lines for <tt>nachos.conf</tt>.
+	 * @param prefix the start of every line of results.
+	 */
+	static void printKernelResults(File directory, Class<?> kernel,
+			String settings, String prefix) {
+		List<String> output = runKernel(directory, kernel, settings);
+
+		boolean measured = false;
+		for (int i = 0; i < output.size(); i++)
+			measured |= output.get(i).startsWith(prefix);
+
+		for (int i = 0; i < output.size(); i++) {
+			String line = output.get(i);
+			if (!measured || line.startsWith(prefix)
+					|| line.startsWith(sinkPrefix))
+				System.out.println(line);
+		}
+	}
+
+	/**
+	 * A kernel that runs a benchmark inside the simulation, with interrupts
+	 * disabled, as scheduler operations require, instead of the kernel's own
+	 * tests, and prints the benchmark's sink after its results.
+	 */
+	public static abstract class BenchmarkKernel extends ThreadedKernel {
+		/**
+		 * Allocate a new benchmark kernel.
+		 */
+		public BenchmarkKernel() {
+			super();
+		}
+
+		/**
+		 * Does nothing: the kernel's own tests are not part of the benchmark.
+		 */
+		public void selfTest() {
+		}
+
+		/**
+		 * Run the benchmark, and print its sink.
+		 */
+		public void run() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			Benchmark bench = newBenchmark();
+			bench.run();
+			System.out.println(sinkPrefix + bench.getSink() + ")");
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Return the benchmark to run. This is called inside the simulation,
+		 * once the scheduler has been created.
+		 * 
+		 * @return a new benchmark.
+		 */
+		protected abstract Benchmark newBenchmark();
+	}
+
+	private static final String sinkPrefix = "(sink ";
+
+	/**
+	 * Test whether this JVM needs to be told explicitly to allow Nachos to
+	 * install its security manager, which is true starting with Java 12.
+	 */
+	private static boolean needsSecurityManagerOption() {
+		String version = System.getProperty("java.specification.version");
+		if (version.startsWith("1."))
+			return false;
+
+		return Integer.parseInt(version) >= 12;
+	}
+}
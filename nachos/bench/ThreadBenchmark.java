@@ -0,0 +1,248 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Measures how many KThreads Nachos can run at once, and what a context
+ * switch between them costs, with TCBs backed by platform threads and, if the
+ * JVM supports them, by virtual threads. Each run forks its threads in pairs
+ * that ping-pong through two semaphores, so that every <tt>V()</tt> hands the
+ * processor to the other thread of the pair.
+ * 
+ * <p>
+ * It also measures forking and joining short-lived threads one at a time,
+ * with and without the pool of idle Java threads that TCBs reuse.
+ * 
+ * <p>
+ * Each run is a simulation in a separate JVM, whose kernel is
+ * <tt>PingPongKernel</tt> or <tt>ChurnKernel</tt>, and which reports its own
+ * timings so that they do not include starting the JVM. Platform threads are
+ * limited to <tt>TCB.maxThreads</tt>.
+ */
+public class ThreadBenchmark extends Benchmark {
+	/**
+	 * Allocate a new thread benchmark.
+	 * 
+	 * @param directory a scratch directory, in which each simulation's
+	 * <tt>nachos.conf</tt> is written.
+	 */
+	public ThreadBenchmark(File directory) {
+		super("threads");
+
+		this.directory = directory;
+	}
+
+	public void run() {
+		churn(0, 5000);
+		churn(16, 5000);
+
+		pingPong(false, 200, 1000);
+
+		if (!virtualThreadsSupported()) {
+			System.out.println("threads.virtual: not supported by this JVM");
+			return;
+		}
+
+		pingPong(true, 200, 1000);
+		pingPong(true, 10000, 20);
+		pingPong(true, 100000, 2);
+	}
+
+	/**
+	 * Time threads ping-ponging.
+	 * 
+	 * @param virtual <tt>true</tt> to back TCBs with virtual threads.
+	 * @param numThreads the number of threads to fork.
+	 * @param rounds the number of times each pair ping-pongs.
+	 */
+	private void pingPong(boolean virtual, int numThreads, int rounds) {
+		simulate("threads." + (virtual ? "virtual." : "platform.")
+				+ numThreads, PingPongKernel.class, "TCB.virtualThreads = "
+				+ virtual + "\n" + "ThreadBenchmark.threads = " + numThreads
+				+ "\n" + "ThreadBenchmark.rounds = " + rounds + "\n");
+	}
+
+	/**
+	 * Time forking and joining threads one at a time.
+	 * 
+	 * @param poolSize the number of idle Java threads TCBs keep.
+	 * @param numThreads the number of threads to fork.
+	 */
+	private void churn(int poolSize, int numThreads) {
+		simulate("threads.churn.pool" + poolSize, ChurnKernel.class,
+				"TCB.threadPool = " + poolSize + "\n"
+						+ "ThreadBenchmark.threads = " + numThreads + "\n");
+	}
+
+	/**
+	 * Run one simulation and print its timings.
+	 * 
+	 * @param label the name printed before the timings.
+	 * @param kernel the kernel to run.
+	 * @param settings extra lines for <tt>nachos.conf</tt>.
+	 */
+	private void simulate(String label, Class<?> kernel, String settings) {
+		String result = null;
+
+		List<String> output = SimulationBenchmark.runKernel(directory,
+				kernel, settings);
+		for (int i = 0; i < output.size(); i++) {
+			if (output.get(i).startsWith(resultPrefix))
+				result = output.get(i).substring(resultPrefix.length());
+		}
+
+		System.out.println(label + ": "
+				+ (result != null ? result : "failed"));
+	}
+
+	private static boolean virtualThreadsSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * A kernel that forks <tt>ThreadBenchmark.threads</tt> threads, in pairs
+	 * that ping-pong <tt>ThreadBenchmark.rounds</tt> times, and prints how
+	 * long forking them and running them took.
+	 */
+	public static class PingPongKernel extends ThreadedKernel {
+		/**
+		 * Allocate a new ping-pong kernel.
+		 */
+		public PingPongKernel() {
+			super();
+		}
+
+		/**
+		 * Does nothing: the kernel's own tests are not part of the benchmark.
+		 */
+		public void selfTest() {
+		}
+
+		/**
+		 * Fork the threads, wait for every one to finish, and print the
+		 * timings.
+		 */
+		public void run() {
+			int numThreads = Config.getInteger("ThreadBenchmark.threads");
+			final int rounds = Config.getInteger("ThreadBenchmark.rounds");
+
+			KThread[] threads = new KThread[numThreads];
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i + 1 < numThreads; i += 2) {
+				final Semaphore ping = new Semaphore(0);
+				final Semaphore pong = new Semaphore(0);
+
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int r = 0; r < rounds; r++) {
+							ping.V();
+							pong.P();
+						}
+					}
+				}).setName("ping " + i);
+				threads[i + 1] = new KThread(new Runnable() {
+					public void run() {
+						for (int r = 0; r < rounds; r++) {
+							ping.P();
+							pong.V();
+						}
+					}
+				}).setName("pong " + i);
+
+				threads[i].fork();
+				threads[i + 1].fork();
+			}
+
+			long forked = System.nanoTime();
+
+			for (int i = 0; i + 1 < numThreads; i += 2) {
+				threads[i].join();
+				threads[i + 1].join();
+			}
+
+			long finished = System.nanoTime();
+
+			// each round of each pair switches to ping, then to pong
+			long numSwitches = (long) (numThreads / 2) * rounds * 2;
+			double nsPerSwitch = (double) (finished - forked) / numSwitches;
+
+			System.out.println(resultPrefix + "fork "
+					+ (forked - start) / numThreads + " ns/thread, "
+					+ Math.round(nsPerSwitch) + " ns/switch, "
+					+ Math.round(1e9 / nsPerSwitch) + " switches/s");
+		}
+	}
+
+	/**
+	 * A kernel that forks <tt>ThreadBenchmark.threads</tt> threads that do
+	 * nothing, one at a time, joining each before forking the next, and
+	 * prints how long each took.
+	 */
+	public static class ChurnKernel extends ThreadedKernel {
+		/**
+		 * Allocate a new churn kernel.
+		 */
+		public ChurnKernel() {
+			super();
+		}
+
+		/**
+		 * Does nothing: the kernel's own tests are not part of the benchmark.
+		 */
+		public void selfTest() {
+		}
+
+		/**
+		 * Fork and join the threads, and print the timings.
+		 */
+		public void run() {
+			int numThreads = Config.getInteger("ThreadBenchmark.threads");
+
+			Runnable nothing = new Runnable() {
+				public void run() {
+				}
+			};
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < numThreads; i++) {
+				KThread thread = new KThread(nothing).setName("worker " + i);
+				thread.fork();
+				thread.join();
+			}
+
+			long finished = System.nanoTime();
+
+			System.out.println(resultPrefix + (finished - start) / numThreads
+					+ " ns/thread forked and joined");
+		}
+	}
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args optionally, the scratch directory (the current directory by
+	 * default).
+	 */
+	public static void main(String[] args) {
+		File directory = new File(args.length > 0 ? args[0] : ".");
+
+		new ThreadBenchmark(directory).run();
+	}
+
+	private static final String resultPrefix = "ThreadBenchmark: ";
+
+	private File directory;
+}
@@ -0,0 +1,130 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Measures the cost of traps from user programs into the kernel. The first
+ * two operations compare throwing a newly allocated exception, with a stack
+ * trace, against throwing a single preallocated exception without one, which
+ * is what the processor does. The last times a syscall-bound simulation:
+ * the shell running <tt>cat</tt> on a large file.
+ */
+public class TrapBenchmark extends SimulationBenchmark {
+	/**
+	 * Allocate a new trap benchmark.
+	 * 
+	 * @param testDirectory the directory holding the test programs, in which
+	 * the file to <tt>cat</tt> is created.
+	 * @param lines the number of lines in the file to <tt>cat</tt>.
+	 */
+	public TrapBenchmark(File testDirectory, int lines) {
+		super("trap");
+
+		this.testDirectory = testDirectory;
+		this.lines = lines;
+	}
+
+	public void run() {
+		invocationsPerRound = 100000;
+		warmupRounds = 5;
+		measureRounds = 10;
+
+		measure("throw.allocated", 1, new Operation() {
+			public long run() {
+				try {
+					return nest(callDepth, null);
+				}
+				catch (TrapException e) {
+					return e.cause;
+				}
+			}
+		});
+		measure("throw.preallocated", 1, new Operation() {
+			public long run() {
+				try {
+					return nest(callDepth, preallocated);
+				}
+				catch (TrapException e) {
+					return e.cause;
+				}
+			}
+		});
+
+		invocationsPerRound = 1;
+		warmupRounds = 1;
+		measureRounds = 3;
+
+		File file = new File(testDirectory, fileName);
+		try {
+			FileWriter writer = new FileWriter(file);
+			for (int i = 0; i < lines; i++)
+				writer.write(i + "\n");
+			writer.close();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not create " + file);
+		}
+
+		// reported per line of the file
+		final String input = "qcat " + fileName + "\nexit\n";
+		measure("cat", lines, new Operation() {
+			public long run() {
+				return simulate("sh.coff", new String[] {}, input);
+			}
+		});
+
+		file.delete();
+	}
+
+	/**
+	 * Throw an exception from <i>depth</i> calls down, as the processor does
+	 * from inside an instruction.
+	 */
+	private static long nest(int depth, TrapException e) throws TrapException {
+		if (depth > 0)
+			return nest(depth - 1, e) + 1;
+
+		if (e == null)
+			throw new TrapException(true);
+
+		e.cause++;
+		throw e;
+	}
+
+	private static class TrapException extends Exception {
+		TrapException(boolean stackTrace) {
+			super(null, null, false, stackTrace);
+		}
+
+		int cause = 0;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args optionally, the test directory (<tt>../test</tt> by
+	 * default) and the number of lines in the file to <tt>cat</tt>.
+	 */
+	public static void main(String[] args) {
+		File testDirectory = new File(args.length > 0 ? args[0] : "../test");
+		int lines = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+		TrapBenchmark bench = new TrapBenchmark(testDirectory, lines);
+
+		bench.run();
+		System.out.println("(sink " + bench.getSink() + ")");
+	}
+
+	private static final int callDepth = 8;
+	private static final String fileName = "trapbench.txt";
+
+	private TrapException preallocated = new TrapException(false);
+	private File testDirectory;
+	private int lines;
+}
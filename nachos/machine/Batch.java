@@ -0,0 +1,409 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Runs a list of Nachos simulations in one JVM, several at a time, to avoid
+ * starting a JVM for each one. The list names one simulation per line:
+ * 
+ * <pre>
+ * <i>directory</i> [<i>arguments</i>...] [&lt;<i>input file</i>]
+ * </pre>
+ * 
+ * <p>
+ * Each simulation runs in <i>directory</i>, as if Nachos had been started
+ * there with the specified arguments, reading its console input from
+ * <i>input file</i> (relative to <i>directory</i>), if one is given. Blank
+ * lines and lines starting with <tt>#</tt> are ignored.
+ * 
+ * <p>
+ * Nachos keeps its state in static fields: the machine, the kernel, the
+ * scheduler, the current TCB, the random number generator, and so on. To
+ * give every simulation its own copy of that state, each one loads the Nachos
+ * classes afresh, through its own class loader, and runs through
+ * <tt>Machine.simulate()</tt>. The console output of each simulation is
+ * collected separately, and printed once it finishes, in the order of the
+ * list.
+ * 
+ * <p>
+ * Since the Nachos security manager cannot be installed, the simulations are
+ * not protected from the code they run, so this is only suitable for trusted
+ * kernels.
+ */
+public final class Batch {
+	/**
+	 * Run the simulations in a list.
+	 * 
+	 * @param args <tt>[-j <i>simulations</i>] <i>list</i></tt>, where the
+	 * option sets how many simulations run at once (by default, one per host
+	 * processor).
+	 */
+	public static void main(String[] args) {
+		int numWorkers = Runtime.getRuntime().availableProcessors();
+		String listName = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length)
+				numWorkers = Integer.parseInt(args[++i]);
+			else
+				listName = args[i];
+		}
+
+		if (listName == null || numWorkers < 1) {
+			System.out.println("usage: java nachos.machine.Batch "
+					+ "[-j <simulations>] <list>");
+			System.exit(1);
+		}
+
+		try {
+			Batch batch = new Batch(readList(listName));
+			System.exit(batch.run(numWorkers));
+		}
+		catch (IOException e) {
+			System.out.println(listName + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Allocate a new batch of simulations.
+	 * 
+	 * @param simulations the simulations to run.
+	 */
+	public Batch(Simulation[] simulations) {
+		this.simulations = simulations;
+	}
+
+	/**
+	 * Run every simulation, printing the output of each as it finishes.
+	 * 
+	 * @param numWorkers the number of simulations to run at once.
+	 * @return 0 if every simulation exited with status 0, or 1 otherwise.
+	 */
+	public int run(int numWorkers) {
+		PrintStream out = System.out;
+
+		// route each simulation's console to its own buffers
+		System.setOut(new PrintStream(new RoutedOutput(out), true));
+		System.setErr(new PrintStream(new RoutedOutput(System.err), true));
+		System.setIn(new RoutedInput());
+
+		long start = System.currentTimeMillis();
+
+		Thread[] workers = new Thread[Math.min(numWorkers, simulations.length)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					runSimulations();
+				}
+			}, "batch worker " + i);
+			workers[i].start();
+		}
+
+		int numFailed = 0;
+		for (int i = 0; i < simulations.length; i++) {
+			Simulation simulation = simulations[i];
+			simulation.waitUntilDone();
+
+			out.println("=== " + simulation + ": status "
+					+ simulation.exitStatus + ", " + simulation.elapsed
+					+ " ms");
+			out.print(simulation.output.toString());
+			out.println();
+
+			if (simulation.exitStatus != 0)
+				numFailed++;
+		}
+
+		out.println("=== " + simulations.length + " simulations, " + numFailed
+				+ " failed, " + (System.currentTimeMillis() - start) + " ms");
+
+		return (numFailed == 0) ? 0 : 1;
+	}
+
+	private void runSimulations() {
+		while (true) {
+			Simulation simulation;
+			synchronized (this) {
+				if (nextSimulation == simulations.length)
+					return;
+				simulation = simulations[nextSimulation++];
+			}
+
+			simulation.run();
+		}
+	}
+
+	private static Simulation[] readList(String listName) throws IOException {
+		ArrayList<Simulation> simulations = new ArrayList<Simulation>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(listName));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+
+			StringTokenizer tokens = new StringTokenizer(line);
+			File directory = new File(tokens.nextToken());
+			ArrayList<String> args = new ArrayList<String>();
+			File input = null;
+
+			while (tokens.hasMoreTokens()) {
+				String token = tokens.nextToken();
+				if (token.startsWith("<") && token.length() > 1)
+					input = new File(directory, token.substring(1));
+				else
+					args.add(token);
+			}
+
+			simulations.add(new Simulation(directory, args
+					.toArray(new String[0]), input));
+		}
+		reader.close();
+
+		return simulations.toArray(new Simulation[0]);
+	}
+
+	/**
+	 * One simulation in a batch.
+	 */
+	public static final class Simulation {
+		/**
+		 * Allocate a new simulation.
+		 * 
+		 * @param directory the directory to run in.
+		 * @param args the Nachos command line arguments.
+		 * @param input the file to use as console input, or <tt>null</tt> for
+		 * none.
+		 */
+		public Simulation(File directory, String[] args, File input) {
+			this.directory = directory;
+			this.args = args;
+			this.input = input;
+		}
+
+		private void run() {
+			long start = System.currentTimeMillis();
+
+			try {
+				byte[] inputBytes = new byte[0];
+				if (input != null)
+					inputBytes = readFile(input);
+
+				streams.set(new Streams(output, new ByteArrayInputStream(
+						inputBytes)));
+
+				String[] machineArgs = new String[args.length + 2];
+				machineArgs[0] = "-b";
+				machineArgs[1] = directory.getPath();
+				System.arraycopy(args, 0, machineArgs, 2, args.length);
+
+				exitStatus = simulate(machineArgs);
+			}
+			catch (Throwable e) {
+				e.printStackTrace(new PrintStream(output, true));
+				exitStatus = 1;
+			}
+			finally {
+				streams.set(null);
+			}
+
+			elapsed = System.currentTimeMillis() - start;
+
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Load a fresh copy of the Nachos classes and run
+		 * <tt>Machine.simulate()</tt> in it.
+		 */
+		private int simulate(String[] machineArgs) throws Exception {
+			URLClassLoader loader = new URLClassLoader(classPath(), Batch.class
+					.getClassLoader().getParent());
+
+			ClassLoader oldLoader = Thread.currentThread()
+					.getContextClassLoader();
+			Thread.currentThread().setContextClassLoader(loader);
+
+			try {
+				Class<?> machine = Class.forName("nachos.machine.Machine", true,
+						loader);
+				Method simulate = machine.getMethod("simulate", String[].class);
+
+				return ((Integer) simulate.invoke(null,
+						new Object[] { machineArgs })).intValue();
+			}
+			catch (InvocationTargetException e) {
+				// Nachos stopped this thread some other way
+				if (e.getCause() instanceof ThreadDeath)
+					return 1;
+
+				throw e;
+			}
+			finally {
+				Thread.currentThread().setContextClassLoader(oldLoader);
+			}
+		}
+
+		private synchronized void waitUntilDone() {
+			while (!done) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}
+
+		public String toString() {
+			String result = directory.getPath();
+			for (int i = 0; i < args.length; i++)
+				result += " " + args[i];
+			if (input != null)
+				result += " <" + input.getName();
+
+			return result;
+		}
+
+		private File directory;
+
+		private String[] args;
+
+		private File input;
+
+		private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		private int exitStatus;
+
+		private long elapsed;
+
+		private boolean done = false;
+	}
+
+	private static URL[] classPath() throws IOException {
+		String[] entries = System.getProperty("java.class.path").split(
+				File.pathSeparator);
+
+		URL[] urls = new URL[entries.length];
+		for (int i = 0; i < entries.length; i++)
+			urls[i] = new File(entries[i]).toURI().toURL();
+
+		return urls;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) > 0)
+			bytes.write(buffer, 0, count);
+		in.close();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The console streams of a simulation. Threads inherit them from the
+	 * thread that creates them, so every TCB in a simulation uses the same
+	 * streams.
+	 */
+	private static class Streams {
+		Streams(OutputStream out, InputStream in) {
+			this.out = out;
+			this.in = in;
+		}
+
+		final OutputStream out;
+
+		final InputStream in;
+	}
+
+	private static final InheritableThreadLocal<Streams> streams = new InheritableThreadLocal<Streams>();
+
+	/**
+	 * Writes to the output of the current thread's simulation, or to the
+	 * original stream for threads outside any simulation.
+	 */
+	private static class RoutedOutput extends OutputStream {
+		RoutedOutput(OutputStream original) {
+			this.original = original;
+		}
+
+		private OutputStream target() {
+			Streams current = streams.get();
+			return (current != null) ? current.out : original;
+		}
+
+		public void write(int b) throws IOException {
+			OutputStream target = target();
+			synchronized (target) {
+				target.write(b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			OutputStream target = target();
+			synchronized (target) {
+				target.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			target().flush();
+		}
+
+		private OutputStream original;
+	}
+
+	/**
+	 * Reads from the input of the current thread's simulation, or from
+	 * nothing for threads outside any simulation.
+	 */
+	private static class RoutedInput extends InputStream {
+		private InputStream source() {
+			Streams current = streams.get();
+			return (current != null) ? current.in : empty;
+		}
+
+		public int read() throws IOException {
+			return source().read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return source().read(b, off, len);
+		}
+
+		public int available() throws IOException {
+			return source().available();
+		}
+
+		private InputStream empty = new ByteArrayInputStream(new byte[0]);
+	}
+
+	private Simulation[] simulations;
+
+	private int nextSimulation = 0;
+}
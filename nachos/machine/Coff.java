@@ -90,6 +90,18 @@ public class Coff {
 				}
 			}
 		}
+
+		if (Machine.processor() != null)
+			Machine.processor().imageLoaded(this);
+	}
+
+	/**
+	 * Return the name of the executable file.
+	 * 
+	 * @return the name of the executable file.
+	 */
+	public String getName() {
+		return file.getName();
 	}
 
 	/**
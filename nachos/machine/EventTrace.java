@@ -0,0 +1,351 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * A fixed-size binary trace of kernel events, each stamped with the
+ * simulated time at which it occurred. Unlike the debug output printed by
+ * <tt>Lib.debug()</tt>, recording an event formats nothing and allocates
+ * nothing: each event is a type and three integer arguments, stored in
+ * primitive arrays used as a ring buffer. Once the buffer is full, each new
+ * event overwrites the oldest one.
+ * 
+ * <p>
+ * The trace is enabled by setting <tt>EventTrace.file</tt> to the name of
+ * the file to write when Nachos exits. <tt>EventTrace.size</tt> sets the
+ * number of events kept (rounded up to a power of two, 65536 by default).
+ * The dump is decoded into a readable timeline by running this class:
+ * 
+ * <pre>
+ * java nachos.machine.EventTrace <i>file</i>
+ * </pre>
+ * 
+ * <p>
+ * Strings, such as thread names and interrupt types, are recorded as
+ * <i>symbols</i>: small integers returned by <tt>symbol()</tt>, which are
+ * mapped back to their strings when the trace is decoded.
+ */
+public final class EventTrace {
+	/**
+	 * Allocate a new event trace.
+	 * 
+	 * @param stats the statistics whose <tt>totalTicks</tt> stamp each event.
+	 * @param fileName the file to write the trace to, or <tt>null</tt> if the
+	 * trace is disabled.
+	 * @param size the number of events to keep.
+	 */
+	public EventTrace(Stats stats, String fileName, int size) {
+		Lib.assertTrue(size > 0);
+
+		this.stats = stats;
+		this.fileName = fileName;
+
+		if (fileName == null)
+			size = 1;
+
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size)
+			capacity <<= 1;
+
+		mask = capacity - 1;
+		times = new long[capacity];
+		events = new byte[capacity];
+		args = new int[capacity * 3];
+	}
+
+	/**
+	 * Test whether events are being recorded.
+	 * 
+	 * @return <tt>true</tt> if the trace is enabled.
+	 */
+	public boolean enabled() {
+		return fileName != null;
+	}
+
+	/**
+	 * Return the symbol standing for a string, allocating one if the string
+	 * has not been seen before.
+	 * 
+	 * @param string the string.
+	 * @return its symbol.
+	 */
+	public int symbol(String string) {
+		Integer symbol = symbols.get(string);
+		if (symbol == null) {
+			symbol = Integer.valueOf(symbolNames.size());
+			symbols.put(string, symbol);
+			symbolNames.add(string);
+		}
+
+		return symbol.intValue();
+	}
+
+	/**
+	 * Record an event at the current simulated time. Does nothing if the
+	 * trace is disabled.
+	 * 
+	 * @param event the type of event, one of the <tt>event</tt> constants.
+	 * @param a the first argument.
+	 * @param b the second argument.
+	 * @param c the third argument.
+	 */
+	public void record(int event, int a, int b, int c) {
+		record(stats.totalTicks, event, a, b, c);
+	}
+
+	/**
+	 * Record an event at the specified simulated time. Does nothing if the
+	 * trace is disabled.
+	 * 
+	 * @param time the simulated time of the event.
+	 * @param event the type of event, one of the <tt>event</tt> constants.
+	 * @param a the first argument.
+	 * @param b the second argument.
+	 * @param c the third argument.
+	 */
+	public void record(long time, int event, int a, int b, int c) {
+		if (fileName == null)
+			return;
+
+		int index = (int) numRecorded & mask;
+		times[index] = time;
+		events[index] = (byte) event;
+		args[index * 3] = a;
+		args[index * 3 + 1] = b;
+		args[index * 3 + 2] = c;
+
+		numRecorded++;
+	}
+
+	/**
+	 * Write the events kept in the buffer, oldest first, to the file named by
+	 * <tt>EventTrace.file</tt>, if the trace is enabled. Writing files is a
+	 * privileged operation.
+	 */
+	public void write() {
+		if (!enabled())
+			return;
+
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(fileName)));
+
+			out.writeInt(magic);
+			out.writeInt(version);
+
+			out.writeInt(symbolNames.size());
+			for (Iterator<String> i = symbolNames.iterator(); i.hasNext();)
+				out.writeUTF(i.next());
+
+			int numKept = (int) Math.min(numRecorded, mask + 1);
+			out.writeLong(numRecorded);
+			out.writeInt(numKept);
+
+			for (long n = numRecorded - numKept; n < numRecorded; n++) {
+				int index = (int) n & mask;
+				out.writeLong(times[index]);
+				out.writeByte(events[index]);
+				out.writeInt(args[index * 3]);
+				out.writeInt(args[index * 3 + 1]);
+				out.writeInt(args[index * 3 + 2]);
+			}
+
+			out.close();
+		}
+		catch (IOException e) {
+			System.out.println("EventTrace: could not write " + fileName);
+		}
+	}
+
+	/**
+	 * Print a trace written by <tt>write()</tt> as a timeline, one event per
+	 * line, followed by the amount of time each thread ran.
+	 * 
+	 * @param in the trace.
+	 * @param out where to print the timeline.
+	 * @throws IOException if the trace cannot be read, or is not a trace.
+	 */
+	public static void decode(DataInputStream in, PrintStream out)
+			throws IOException {
+		if (in.readInt() != magic || in.readInt() != version)
+			throw new IOException("not a Nachos event trace");
+
+		String[] names = new String[in.readInt()];
+		for (int i = 0; i < names.length; i++)
+			names[i] = in.readUTF();
+
+		long numRecorded = in.readLong();
+		int numKept = in.readInt();
+
+		out.println("Event trace: " + numRecorded + " events recorded, last "
+				+ numKept + " kept");
+		out.println(pad("ticks", 12) + pad("delta", 10) + "  event");
+
+		HashMap<Integer, String> threads = new HashMap<Integer, String>();
+		TreeMap<Integer, Long> running = new TreeMap<Integer, Long>();
+		int runningThread = -1;
+		long lastTime = -1, lastSwitch = -1;
+
+		for (int n = 0; n < numKept; n++) {
+			long time = in.readLong();
+			int event = in.readByte();
+			int a = in.readInt(), b = in.readInt(), c = in.readInt();
+
+			String delta = (lastTime < 0) ? "" : "+" + (time - lastTime);
+			lastTime = time;
+
+			String description;
+			switch (event) {
+			case eventSwitch:
+				threads.put(b, names[c] + " (#" + b + ")");
+				description = "switch     " + thread(threads, a) + " -> "
+						+ thread(threads, b);
+
+				if (lastSwitch >= 0 && runningThread == a) {
+					Long sum = running.get(a);
+					running.put(a, (sum == null ? 0 : sum) + time - lastSwitch);
+				}
+				runningThread = b;
+				lastSwitch = time;
+				break;
+			case eventInterrupt:
+				description = "interrupt  " + names[a];
+				break;
+			case eventSyscall:
+				description = "syscall    "
+						+ (a >= 0 && a < syscallNames.length ? syscallNames[a]
+								: "#" + a) + " (pid " + b + ", a0 = 0x"
+						+ Lib.toHexString(c) + ")";
+				break;
+			case eventPageFault:
+				description = "page fault 0x" + Lib.toHexString(a);
+				break;
+			case eventTLBMiss:
+				description = "TLB miss   0x" + Lib.toHexString(a);
+				break;
+			case eventPacketSend:
+				description = "send       link " + a + " -> link " + b + ", "
+						+ c + " bytes";
+				break;
+			case eventPacketReceive:
+				description = "receive    link " + a + " -> link " + b + ", "
+						+ c + " bytes";
+				break;
+			default:
+				description = "event " + event + " (" + a + ", " + b + ", " + c
+						+ ")";
+				break;
+			}
+
+			out.println(pad(Long.toString(time), 12) + pad(delta, 10) + "  "
+					+ description);
+		}
+
+		if (!running.isEmpty()) {
+			out.println("Thread time between switches:");
+			for (Iterator<Integer> i = running.keySet().iterator(); i.hasNext();) {
+				int id = i.next();
+				out.println("  " + pad(running.get(id).toString(), 12) + "  "
+						+ thread(threads, id));
+			}
+		}
+	}
+
+	private static String thread(HashMap<Integer, String> threads, int id) {
+		String name = threads.get(id);
+		return (name != null) ? name : "#" + id;
+	}
+
+	private static String pad(String s, int width) {
+		while (s.length() < width)
+			s = " " + s;
+		return s;
+	}
+
+	/**
+	 * Decode a trace and print its timeline to standard output.
+	 * 
+	 * @param args the name of the trace file.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("usage: java nachos.machine.EventTrace <file>");
+			return;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(args[0])));
+			decode(in, System.out);
+			in.close();
+		}
+		catch (IOException e) {
+			System.out.println(args[0] + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A context switch. The arguments are the ID of the old thread, the ID of
+	 * the new thread, and the symbol for the new thread's name.
+	 */
+	public static final int eventSwitch = 1;
+	/** An interrupt. The first argument is the symbol for its type. */
+	public static final int eventInterrupt = 2;
+	/**
+	 * A system call. The arguments are the syscall number, the process ID and
+	 * the first argument to the syscall.
+	 */
+	public static final int eventSyscall = 3;
+	/** A page fault. The first argument is the faulting virtual address. */
+	public static final int eventPageFault = 4;
+	/** A TLB miss. The first argument is the faulting virtual address. */
+	public static final int eventTLBMiss = 5;
+	/**
+	 * A packet sent. The arguments are the source link, the destination link
+	 * and the length of the packet's contents.
+	 */
+	public static final int eventPacketSend = 6;
+	/**
+	 * A packet received. The arguments are the source link, the destination
+	 * link and the length of the packet's contents.
+	 */
+	public static final int eventPacketReceive = 7;
+
+	private static final String[] syscallNames = { "halt", "exit", "exec",
+			"join", "creat", "open", "read", "write", "close", "unlink",
+			"mmap", "connect", "accept" };
+
+	private static final int magic = 0x4E545243; // "NTRC"
+	private static final int version = 1;
+
+	private Stats stats;
+
+	private String fileName;
+
+	private int mask;
+
+	private long numRecorded = 0;
+
+	private long[] times;
+
+	private byte[] events;
+
+	private int[] args;
+
+	private HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+
+	private ArrayList<String> symbolNames = new ArrayList<String>();
+}
@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -52,7 +48,9 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new InterruptQueue();
+
+		idleFastForward = Config.getBoolean("Interrupt.idleFastForward", true);
 	}
 
 	/**
@@ -119,16 +117,45 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Called by the kernel when the idle thread is running and no other thread
+	 * is ready to run. Advance the simulated time to the last kernel tick
+	 * before the next pending interrupt is due, so that the interrupt occurs
+	 * the next time interrupts are enabled. The time advanced is accounted exactly as if the idle
+	 * thread had kept yielding until then, one kernel tick at a time.
+	 * 
+	 * <p>
+	 * Nothing is advanced if <tt>Interrupt.idleFastForward</tt> is
+	 * <tt>false</tt>, or if interrupts are being traced.
+	 */
+	public void idle() {
+		if (!idleFastForward || Lib.test(dbgInt) || pending.isEmpty())
+			return;
+
+		Stats stats = privilege.stats;
+
+		long due = pending.time(pending.first());
+		if (due <= stats.totalTicks + Stats.KernelTick)
+			return;
+
+		// the tick that reaches the due time must go through checkIfDue()
+		long numTicks = (due - stats.totalTicks - 1) / Stats.KernelTick;
+
+		Lib.debug(dbgInt, "Idle: skipping " + numTicks + " kernel ticks");
+
+		stats.kernelTicks += numTicks * Stats.KernelTick;
+		stats.totalTicks += numTicks * Stats.KernelTick;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +178,33 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long quietUserTicks() {
+		// every tick must be printed if we're tracing interrupts
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		long time = privilege.stats.totalTicks;
+		long due = pending.time(pending.first());
+
+		if (due <= time)
+			return 0;
+
+		// the tick that reaches the due time must go through checkIfDue()
+		return (due - time - 1) / Stats.UserTick;
+	}
+
+	private void advance(long numTicks) {
+		Lib.assertTrue(numTicks >= 0 && numTicks <= quietUserTicks());
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += numTicks * Stats.UserTick;
+		stats.totalTicks += numTicks * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -162,24 +216,39 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.time(pending.first()) > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.time(pending.first()) <= time) {
+			int next = pending.first();
+			String type = pending.type(next);
+			Runnable handler = pending.handler(next);
+			pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			EventTrace trace = Machine.eventTrace();
+			if (trace.enabled())
+				trace.record(EventTrace.eventInterrupt, trace.symbol(type), 0, 0);
+
+			if (Machine.metrics().enabled()) {
+				long ticks = privilege.stats.totalTicks;
+				long start = System.nanoTime();
+
+				handler.run();
+
+				Machine.metrics().latency("interrupt_handler", "type", type)
+						.record(privilege.stats.totalTicks - ticks,
+								System.nanoTime() - start);
+			}
+			else {
+				handler.run();
+			}
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +259,22 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		int[] sorted = pending.sorted();
+		for (int i = 0; i < sorted.length; i++) {
+			System.out.println("  " + pending.type(sorted[i])
+					+ ", scheduled at " + pending.time(sorted[i]));
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
-		long time;
-
-		String type;
-
-		Runnable handler;
-
-		private long id;
-	}
-
-	private long numPendingInterruptsCreated = 0;
-
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private boolean idleFastForward;
+
+	private InterruptQueue pending;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +286,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long quietUserTicks() {
+			return Interrupt.this.quietUserTicks();
+		}
+
+		public void advance(long numTicks) {
+			Interrupt.this.advance(numTicks);
+		}
 	}
 }
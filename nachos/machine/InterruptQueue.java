@@ -0,0 +1,232 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The set of pending interrupts, ordered by the time they are due to occur.
+ * Interrupts due at the same time occur in the order they were scheduled.
+ * 
+ * <p>
+ * The queue is a binary min-heap over primitive arrays. Each pending
+ * interrupt lives in a <i>slot</i>, and the heap holds slot numbers, so
+ * scheduling and removing interrupts allocates nothing once the arrays have
+ * grown to the largest number of interrupts pending at once.
+ */
+public final class InterruptQueue {
+	/**
+	 * Allocate a new, empty interrupt queue.
+	 */
+	public InterruptQueue() {
+		grow(initialCapacity);
+	}
+
+	/**
+	 * Add an interrupt to the queue.
+	 * 
+	 * @param time the time at which the interrupt is due.
+	 * @param type the type of the interrupt, for debugging.
+	 * @param handler the interrupt handler.
+	 */
+	public void add(long time, String type, Runnable handler) {
+		if (size == heap.length)
+			grow(heap.length * 2);
+
+		int slot = freeSlots[--numFreeSlots];
+		times[slot] = time;
+		ids[slot] = numAdded++;
+		types[slot] = type;
+		handlers[slot] = handler;
+
+		siftUp(size++, slot);
+	}
+
+	/**
+	 * Test whether the queue is empty.
+	 * 
+	 * @return <tt>true</tt> if no interrupts are pending.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the number of pending interrupts.
+	 * 
+	 * @return the number of pending interrupts.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the slot of the interrupt that will occur next. The queue must
+	 * not be empty.
+	 * 
+	 * @return the slot of the first interrupt.
+	 */
+	public int first() {
+		Lib.assertTrue(size > 0);
+		return heap[0];
+	}
+
+	/**
+	 * Remove the interrupt that will occur next. Its slot may be reused by
+	 * the next call to <tt>add()</tt>, so its fields must be read first.
+	 */
+	public void removeFirst() {
+		Lib.assertTrue(size > 0);
+
+		int slot = heap[0];
+		types[slot] = null;
+		handlers[slot] = null;
+		freeSlots[numFreeSlots++] = slot;
+
+		int last = heap[--size];
+		if (size > 0)
+			siftDown(0, last);
+	}
+
+	/**
+	 * Return the time at which the interrupt in a slot is due.
+	 * 
+	 * @param slot the slot of a pending interrupt.
+	 * @return the time it is due.
+	 */
+	public long time(int slot) {
+		return times[slot];
+	}
+
+	/**
+	 * Return the type of the interrupt in a slot.
+	 * 
+	 * @param slot the slot of a pending interrupt.
+	 * @return its type.
+	 */
+	public String type(int slot) {
+		return types[slot];
+	}
+
+	/**
+	 * Return the handler of the interrupt in a slot.
+	 * 
+	 * @param slot the slot of a pending interrupt.
+	 * @return its handler.
+	 */
+	public Runnable handler(int slot) {
+		return handlers[slot];
+	}
+
+	/**
+	 * Return the slots of every pending interrupt, in the order the
+	 * interrupts will occur. This is slow, and is meant only for debugging.
+	 * 
+	 * @return the slots of the pending interrupts, in order.
+	 */
+	public int[] sorted() {
+		int[] result = new int[size];
+		for (int i = 0; i < size; i++)
+			result[i] = heap[i];
+
+		// insertion sort: the heap is nearly sorted and usually tiny
+		for (int i = 1; i < size; i++) {
+			int slot = result[i];
+			int j = i;
+			for (; j > 0 && before(slot, result[j - 1]); j--)
+				result[j] = result[j - 1];
+			result[j] = slot;
+		}
+
+		return result;
+	}
+
+	private boolean before(int a, int b) {
+		if (times[a] != times[b])
+			return times[a] < times[b];
+		else
+			return ids[a] < ids[b];
+	}
+
+	private void siftUp(int index, int slot) {
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (!before(slot, heap[parent]))
+				break;
+
+			heap[index] = heap[parent];
+			index = parent;
+		}
+
+		heap[index] = slot;
+	}
+
+	private void siftDown(int index, int slot) {
+		int half = size >>> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+
+			if (!before(heap[child], slot))
+				break;
+
+			heap[index] = heap[child];
+			index = child;
+		}
+
+		heap[index] = slot;
+	}
+
+	private void grow(int capacity) {
+		int oldCapacity = (heap == null) ? 0 : heap.length;
+
+		heap = copyOf(heap, capacity);
+		times = copyOf(times, capacity);
+		ids = copyOf(ids, capacity);
+
+		String[] newTypes = new String[capacity];
+		Runnable[] newHandlers = new Runnable[capacity];
+		if (oldCapacity > 0) {
+			System.arraycopy(types, 0, newTypes, 0, oldCapacity);
+			System.arraycopy(handlers, 0, newHandlers, 0, oldCapacity);
+		}
+		types = newTypes;
+		handlers = newHandlers;
+
+		// every slot is in use when the queue grows
+		freeSlots = new int[capacity];
+		for (int slot = capacity - 1; slot >= oldCapacity; slot--)
+			freeSlots[numFreeSlots++] = slot;
+	}
+
+	private static int[] copyOf(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static long[] copyOf(long[] array, int capacity) {
+		long[] result = new long[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private int size = 0;
+
+	private long numAdded = 0;
+
+	private int[] heap;
+
+	private long[] times, ids;
+
+	private String[] types;
+
+	private Runnable[] handlers;
+
+	private int[] freeSlots;
+
+	private int numFreeSlots = 0;
+
+	private static final int initialCapacity = 16;
+}
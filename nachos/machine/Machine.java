@@ -27,18 +27,21 @@ public final class Machine {
 
 		processArgs();
 
-		Config.load(configFileName);
-
-		// get the current directory (.)
-		baseDirectory = new File(new File("").getAbsolutePath());
+		// get the current directory (.), unless -b named another
+		if (baseDirectoryName == null)
+			baseDirectory = new File(new File("").getAbsolutePath());
+		else
+			baseDirectory = new File(baseDirectoryName).getAbsoluteFile();
 		// get the nachos directory (./nachos)
 		nachosDirectory = new File(baseDirectory, "nachos");
 
+		Config.load(resolve(configFileName).getPath());
+
 		String testDirectoryName = Config.getString("FileSystem.testDirectory");
 
 		// get the test directory
 		if (testDirectoryName != null) {
-			testDirectory = new File(testDirectoryName);
+			testDirectory = resolve(testDirectoryName);
 		}
 		else {
 			// use ../test
@@ -53,7 +56,21 @@ public final class Machine {
 		TCB.givePrivilege(privilege);
 		privilege.stats = stats;
 
-		securityManager.enable();
+		metrics = new Metrics(Config.getString("Metrics.file"), Config
+				.getString("Metrics.format", "json"));
+		eventTrace = new EventTrace(stats, Config.getString("EventTrace.file"),
+				Config.getInteger("EventTrace.size", 65536));
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				writeMetrics();
+				writeEventTrace();
+			}
+		});
+
+		if (embedded)
+			securityManager.embed();
+		else
+			securityManager.enable();
 		createDevices();
 		checkUserClasses();
 
@@ -69,6 +86,45 @@ public final class Machine {
 		
 	}
 
+	/**
+	 * Run a simulation the same way as <tt>main()</tt>, but without taking
+	 * over the JVM: the Nachos security manager is not installed, and when
+	 * Nachos exits, its threads are stopped instead of the JVM. This lets
+	 * <tt>Batch</tt> run several simulations in one JVM, each with its own
+	 * copy of the Nachos classes.
+	 * 
+	 * <p>
+	 * Since the security manager is not installed, the simulation is not
+	 * protected from the code it runs.
+	 * 
+	 * @param args the command line arguments.
+	 * @return the status Nachos exited with.
+	 */
+	public static int simulate(String[] args) {
+		embedded = true;
+
+		try {
+			main(args);
+		}
+		catch (ThreadDeath e) {
+			// this thread was stopped by exit()
+		}
+
+		return securityManager.waitForExit();
+	}
+
+	/**
+	 * Return the file with the specified name, relative to the base directory
+	 * if the name is not absolute.
+	 */
+	private static File resolve(String fileName) {
+		File file = new File(fileName);
+		if (file.isAbsolute())
+			return file;
+		else
+			return new File(baseDirectory, fileName);
+	}
+
 	/**
 	 * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
 	 * non-Nachos threads a chance to run.
@@ -103,9 +159,34 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (processor != null)
+			processor.reportProfile();
 		terminate();
 	}
 
+	private static void writeMetrics() {
+		if (!metrics.enabled())
+			return;
+
+		stats.export(metrics);
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				metrics.write();
+			}
+		});
+	}
+
+	private static void writeEventTrace() {
+		if (!eventTrace.enabled())
+			return;
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				eventTrace.write();
+			}
+		});
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -149,6 +230,10 @@ public final class Machine {
 						Lib.assertNotReached("bad value for -s switch");
 					}
 				}
+				else if (arg.equals("-b")) {
+					Lib.assertTrue(i < args.length, "switch without argument");
+					baseDirectoryName = args[i++];
+				}
 				else if (arg.equals("-x")) {
 					Lib.assertTrue(i < args.length, "switch without argument");
 					shellProgramName = args[i++];
@@ -308,6 +393,40 @@ public final class Machine {
 		return interrupt;
 	}
 
+	/**
+	 * Return the metrics registry.
+	 * 
+	 * @return the metrics registry.
+	 */
+	public static Metrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Count a job of a real-time kernel thread that missed its deadline, in
+	 * the statistics printed when Nachos halts.
+	 */
+	public static void recordDeadlineMiss() {
+		stats.numDeadlineMisses++;
+	}
+
+	/**
+	 * Count a job of a real-time kernel thread that overran its budget, in
+	 * the statistics printed when Nachos halts.
+	 */
+	public static void recordBudgetOverrun() {
+		stats.numBudgetOverruns++;
+	}
+
+	/**
+	 * Return the kernel event trace.
+	 * 
+	 * @return the kernel event trace.
+	 */
+	public static EventTrace eventTrace() {
+		return eventTrace;
+	}
+
 	/**
 	 * Return the hardware timer.
 	 * 
@@ -438,6 +557,10 @@ public final class Machine {
 
 	private static Stats stats = new Stats();
 
+	private static Metrics metrics = null;
+
+	private static EventTrace eventTrace = null;
+
 	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
@@ -446,6 +569,10 @@ public final class Machine {
 
 	private static String configFileName = "nachos.conf";
 
+	private static String baseDirectoryName = null;
+
+	private static boolean embedded = false;
+
 	private static final String help = "\n"
 			+ "Options:\n"
 			+ "\n"
@@ -460,7 +587,9 @@ public final class Machine {
 			+ "\n"
 			+ "\t-s <seed>\n"
 			+ "\t\tSpecify the seed for the random number generator (seed is a\n"
-			+ "\t\tlong).\n" + "\n" + "\t-x <program>\n"
+			+ "\t\tlong).\n" + "\n" + "\t-b <directory>\n"
+			+ "\t\tRun in the specified directory, instead of the current\n"
+			+ "\t\tdirectory.\n" + "\n" + "\t-x <program>\n"
 			+ "\t\tSpecify a program that UserKernel.run() should execute,\n"
 			+ "\t\tinstead of the value of the configuration variable\n"
 			+ "\t\tKernel.shellProgram\n" + "\n" + "\t-z\n"
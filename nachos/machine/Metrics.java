@@ -0,0 +1,603 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * A registry of named counters, gauges and histograms. The machine records
+ * a few histograms of its own while the metrics are enabled, and the kernel
+ * may register more through <tt>Machine.metrics()</tt>. When Nachos exits,
+ * every metric, along with the counters in <tt>Stats</tt>, is written to a
+ * file, so that runs can be compared by other tools.
+ * 
+ * <p>
+ * The metrics are enabled by setting <tt>Metrics.file</tt> to the name of
+ * the file to write. <tt>Metrics.format</tt> selects <tt>json</tt> (the
+ * default) or <tt>prometheus</tt>, the Prometheus text exposition format.
+ * While the metrics are disabled, metrics can still be registered and
+ * updated, but the machine records nothing, and nothing is written.
+ * 
+ * <p>
+ * The histograms built into the machine each come in two flavors: one
+ * measured in simulated ticks (<tt>_ticks</tt>), and one measured in host
+ * nanoseconds (<tt>_nanoseconds</tt>):
+ * <ul>
+ * <li><tt>context_switch_interval</tt>: the time between two switches from
+ * one TCB to another.
+ * <li><tt>syscall_latency</tt>, labeled by <tt>syscall</tt> number: the
+ * time the kernel takes to handle a system call.
+ * <li><tt>page_fault_service</tt>, labeled by <tt>exception</tt>: the time
+ * the kernel takes to handle a page fault or TLB miss.
+ * <li><tt>interrupt_handler</tt>, labeled by interrupt <tt>type</tt>: the
+ * time an interrupt handler runs.
+ * </ul>
+ * All of these include any time the kernel spends running other threads
+ * before it returns.
+ */
+public final class Metrics {
+	/**
+	 * Allocate a new metrics registry.
+	 * 
+	 * @param fileName the file to write the metrics to, or <tt>null</tt> if
+	 * the metrics are disabled.
+	 * @param format <tt>json</tt> or <tt>prometheus</tt>.
+	 */
+	public Metrics(String fileName, String format) {
+		Lib.assertTrue(format.equals("json") || format.equals("prometheus"));
+
+		this.fileName = fileName;
+		this.format = format;
+	}
+
+	/**
+	 * Test whether the metrics will be written when Nachos exits. The
+	 * machine only records its own histograms if this is <tt>true</tt>.
+	 * 
+	 * @return <tt>true</tt> if the metrics are enabled.
+	 */
+	public boolean enabled() {
+		return fileName != null;
+	}
+
+	/**
+	 * Return the counter with the specified name, registering it if it does
+	 * not exist yet.
+	 * 
+	 * @param name the name of the counter.
+	 * @return the counter.
+	 */
+	public Counter counter(String name) {
+		return counter(name, null, null);
+	}
+
+	/**
+	 * Return the counter with the specified name and label, registering it if
+	 * it does not exist yet.
+	 * 
+	 * @param name the name of the counter.
+	 * @param label the name of the label, or <tt>null</tt> for none.
+	 * @param value the value of the label.
+	 * @return the counter.
+	 */
+	public Counter counter(String name, String label, String value) {
+		Metric metric = lookup(name, label, value);
+		if (metric == null)
+			metric = register(new Counter(name, label, value));
+
+		Lib.assertTrue(metric instanceof Counter);
+		return (Counter) metric;
+	}
+
+	/**
+	 * Return the gauge with the specified name, registering it if it does not
+	 * exist yet.
+	 * 
+	 * @param name the name of the gauge.
+	 * @return the gauge.
+	 */
+	public Gauge gauge(String name) {
+		return gauge(name, null, null);
+	}
+
+	/**
+	 * Return the gauge with the specified name and label, registering it if
+	 * it does not exist yet.
+	 * 
+	 * @param name the name of the gauge.
+	 * @param label the name of the label, or <tt>null</tt> for none.
+	 * @param value the value of the label.
+	 * @return the gauge.
+	 */
+	public Gauge gauge(String name, String label, String value) {
+		Metric metric = lookup(name, label, value);
+		if (metric == null)
+			metric = register(new Gauge(name, label, value));
+
+		Lib.assertTrue(metric instanceof Gauge);
+		return (Gauge) metric;
+	}
+
+	/**
+	 * Return the histogram with the specified name, registering it if it does
+	 * not exist yet.
+	 * 
+	 * @param name the name of the histogram.
+	 * @return the histogram.
+	 */
+	public Histogram histogram(String name) {
+		return histogram(name, null, null);
+	}
+
+	/**
+	 * Return the histogram with the specified name and label, registering it
+	 * if it does not exist yet.
+	 * 
+	 * @param name the name of the histogram.
+	 * @param label the name of the label, or <tt>null</tt> for none.
+	 * @param value the value of the label.
+	 * @return the histogram.
+	 */
+	public Histogram histogram(String name, String label, String value) {
+		Metric metric = lookup(name, label, value);
+		if (metric == null)
+			metric = register(new Histogram(name, label, value));
+
+		Lib.assertTrue(metric instanceof Histogram);
+		return (Histogram) metric;
+	}
+
+	/**
+	 * Return the pair of histograms, one in simulated ticks and one in host
+	 * nanoseconds, that measure the latency of something, registering them
+	 * if they do not exist yet.
+	 * 
+	 * @param name the name of the pair. The histograms are named
+	 * <tt><i>name</i>_ticks</tt> and <tt><i>name</i>_nanoseconds</tt>.
+	 * @param label the name of the label, or <tt>null</tt> for none.
+	 * @param value the value of the label.
+	 * @return the pair of histograms.
+	 */
+	public Latency latency(String name, String label, String value) {
+		String key = key(name, label, value);
+
+		Latency latency = latencies.get(key);
+		if (latency == null) {
+			latency = new Latency(histogram(name + "_ticks", label, value),
+					histogram(name + "_nanoseconds", label, value));
+			latencies.put(key, latency);
+		}
+
+		return latency;
+	}
+
+	private Metric lookup(String name, String label, String value) {
+		return metrics.get(key(name, label, value));
+	}
+
+	private Metric register(Metric metric) {
+		Lib.assertTrue(validName(metric.name)
+				&& (metric.label == null || validName(metric.label)));
+
+		metrics.put(key(metric.name, metric.label, metric.value), metric);
+		return metric;
+	}
+
+	// '\0' sorts first, so metrics with the same name stay together
+	private static String key(String name, String label, String value) {
+		if (label == null)
+			return name;
+		else
+			return name + '\0' + label + '\0' + value;
+	}
+
+	private static boolean validName(String name) {
+		if (name.length() == 0)
+			return false;
+
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| c == '_';
+			boolean digit = (c >= '0' && c <= '9');
+
+			if (!letter && !(digit && i > 0))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static String escape(String value) {
+		StringBuffer result = new StringBuffer();
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				result.append('\\');
+			if (c == '\n')
+				result.append("\\n");
+			else
+				result.append(c);
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * Write every metric to the file named by <tt>Metrics.file</tt>, if the
+	 * metrics are enabled. Writing files is a privileged operation.
+	 */
+	public void write() {
+		if (!enabled())
+			return;
+
+		try {
+			PrintWriter writer = new PrintWriter(new FileWriter(fileName));
+			if (format.equals("json"))
+				writeJSON(writer);
+			else
+				writePrometheus(writer);
+			writer.close();
+		}
+		catch (IOException e) {
+			System.out.println("Metrics: could not write " + fileName);
+		}
+	}
+
+	private void writeJSON(PrintWriter writer) {
+		writer.println("{");
+
+		String[] sections = { "counters", "gauges", "histograms" };
+		for (int s = 0; s < sections.length; s++) {
+			writer.print("  \"" + sections[s] + "\": {");
+
+			boolean first = true;
+			for (Iterator<Metric> i = metrics.values().iterator(); i.hasNext();) {
+				Metric metric = i.next();
+				if (!metric.type().equals(sections[s].substring(0,
+						sections[s].length() - 1)))
+					continue;
+
+				writer.print(first ? "\n" : ",\n");
+				first = false;
+
+				String key = metric.name + metric.labels(null, null);
+				writer.print("    \""
+						+ key.replace("\\", "\\\\").replace("\"", "\\\"")
+						+ "\": ");
+				metric.writeJSON(writer);
+			}
+
+			writer.print(first ? "}" : "\n  }");
+			writer.println(s < sections.length - 1 ? "," : "");
+		}
+
+		writer.println("}");
+	}
+
+	private void writePrometheus(PrintWriter writer) {
+		String lastName = null;
+
+		for (Iterator<Metric> i = metrics.values().iterator(); i.hasNext();) {
+			Metric metric = i.next();
+
+			String name = prefix + metric.name;
+			if (!name.equals(lastName))
+				writer.println("# TYPE " + name + " " + metric.type());
+			lastName = name;
+
+			metric.writePrometheus(writer, name);
+		}
+	}
+
+	/**
+	 * A named value with at most one label.
+	 */
+	private static abstract class Metric {
+		Metric(String name, String label, String value) {
+			this.name = name;
+			this.label = label;
+			this.value = value;
+		}
+
+		abstract String type();
+
+		abstract void writeJSON(PrintWriter writer);
+
+		abstract void writePrometheus(PrintWriter writer, String name);
+
+		String labels(String extraLabel, String extraValue) {
+			String result = "";
+			if (label != null)
+				result += label + "=\"" + escape(value) + "\"";
+			if (extraLabel != null)
+				result += (label != null ? "," : "") + extraLabel + "=\""
+						+ extraValue + "\"";
+
+			return (result.length() > 0) ? "{" + result + "}" : "";
+		}
+
+		final String name, label, value;
+	}
+
+	/**
+	 * A value that only increases.
+	 */
+	public static final class Counter extends Metric {
+		Counter(String name, String label, String value) {
+			super(name, label, value);
+		}
+
+		/**
+		 * Add one to this counter.
+		 */
+		public void increment() {
+			count++;
+		}
+
+		/**
+		 * Add to this counter.
+		 * 
+		 * @param amount the amount to add. Must not be negative.
+		 */
+		public void add(long amount) {
+			Lib.assertTrue(amount >= 0);
+			count += amount;
+		}
+
+		/**
+		 * Return the value of this counter.
+		 * 
+		 * @return the value of this counter.
+		 */
+		public long get() {
+			return count;
+		}
+
+		/** Set this counter to a count kept somewhere else. */
+		void set(long count) {
+			Lib.assertTrue(count >= this.count);
+			this.count = count;
+		}
+
+		String type() {
+			return "counter";
+		}
+
+		void writeJSON(PrintWriter writer) {
+			writer.print(count);
+		}
+
+		void writePrometheus(PrintWriter writer, String name) {
+			writer.println(name + labels(null, null) + " " + count);
+		}
+
+		private long count = 0;
+	}
+
+	/**
+	 * A value that may go up and down.
+	 */
+	public static final class Gauge extends Metric {
+		Gauge(String name, String label, String value) {
+			super(name, label, value);
+		}
+
+		/**
+		 * Set the value of this gauge.
+		 * 
+		 * @param value the new value.
+		 */
+		public void set(long value) {
+			level = value;
+		}
+
+		/**
+		 * Return the value of this gauge.
+		 * 
+		 * @return the value of this gauge.
+		 */
+		public long get() {
+			return level;
+		}
+
+		String type() {
+			return "gauge";
+		}
+
+		void writeJSON(PrintWriter writer) {
+			writer.print(level);
+		}
+
+		void writePrometheus(PrintWriter writer, String name) {
+			writer.println(name + labels(null, null) + " " + level);
+		}
+
+		private long level = 0;
+	}
+
+	/**
+	 * A distribution of non-negative values, counted in logarithmic buckets.
+	 * Values below 16 each have their own bucket; above that, every power of
+	 * two is split into 8 buckets, so a bucket's bounds are within 12.5% of
+	 * any value in it. Recording a value allocates nothing.
+	 */
+	public static final class Histogram extends Metric {
+		Histogram(String name, String label, String value) {
+			super(name, label, value);
+		}
+
+		/**
+		 * Record a value. Negative values are recorded as 0.
+		 * 
+		 * @param value the value to record.
+		 */
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+
+			buckets[bucket(value)]++;
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * Return the number of values recorded.
+		 * 
+		 * @return the number of values recorded.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Return the sum of the values recorded.
+		 * 
+		 * @return the sum of the values recorded.
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * Return an upper bound on the specified percentile of the values
+		 * recorded, accurate to the width of its bucket.
+		 * 
+		 * @param percentile the percentile, between 0 and 100.
+		 * @return the percentile, or 0 if no values have been recorded.
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(percentile / 100 * count);
+			long seen = 0;
+			for (int i = 0; i < numBuckets; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(max, upperBound(i) - 1);
+			}
+
+			return max;
+		}
+
+		private static int bucket(long value) {
+			if (value < linearBuckets)
+				return (int) value;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - subBucketBits))
+					& (subBuckets - 1);
+
+			return linearBuckets + (exponent - 4) * subBuckets + sub;
+		}
+
+		/** Return the smallest value greater than every value in a bucket. */
+		private static long upperBound(int bucket) {
+			if (bucket < linearBuckets)
+				return bucket + 1;
+
+			int exponent = (bucket - linearBuckets) / subBuckets + 4;
+			int sub = (bucket - linearBuckets) % subBuckets;
+
+			// the last bucket ends past the largest long
+			if (exponent == 62 && sub == subBuckets - 1)
+				return Long.MAX_VALUE;
+
+			return (long) (subBuckets + sub + 1) << (exponent - subBucketBits);
+		}
+
+		String type() {
+			return "histogram";
+		}
+
+		void writeJSON(PrintWriter writer) {
+			writer.print("{\"count\": " + count + ", \"sum\": " + sum
+					+ ", \"min\": " + (count > 0 ? min : 0) + ", \"max\": "
+					+ max + ", \"p50\": " + getPercentile(50) + ", \"p90\": "
+					+ getPercentile(90) + ", \"p99\": " + getPercentile(99)
+					+ ", \"buckets\": [");
+
+			boolean first = true;
+			for (int i = 0; i < numBuckets; i++) {
+				if (buckets[i] == 0)
+					continue;
+
+				writer.print((first ? "" : ", ") + "[" + upperBound(i) + ", "
+						+ buckets[i] + "]");
+				first = false;
+			}
+
+			writer.print("]}");
+		}
+
+		void writePrometheus(PrintWriter writer, String name) {
+			long cumulative = 0;
+			for (int i = 0; i < numBuckets; i++) {
+				if (buckets[i] == 0)
+					continue;
+
+				cumulative += buckets[i];
+				// Prometheus buckets are inclusive upper bounds
+				writer.println(name + "_bucket"
+						+ labels("le", Long.toString(upperBound(i) - 1)) + " "
+						+ cumulative);
+			}
+			writer.println(name + "_bucket" + labels("le", "+Inf") + " "
+					+ count);
+			writer.println(name + "_sum" + labels(null, null) + " " + sum);
+			writer.println(name + "_count" + labels(null, null) + " " + count);
+		}
+
+		private static final int subBucketBits = 3;
+		private static final int subBuckets = 1 << subBucketBits;
+		private static final int linearBuckets = 2 * subBuckets;
+		private static final int numBuckets = linearBuckets + (63 - 4)
+				* subBuckets;
+
+		private long[] buckets = new long[numBuckets];
+
+		private long count = 0, sum = 0, min = Long.MAX_VALUE, max = 0;
+	}
+
+	/**
+	 * A pair of histograms measuring the same latency, in simulated ticks and
+	 * in host nanoseconds.
+	 */
+	public static final class Latency {
+		Latency(Histogram ticks, Histogram nanoseconds) {
+			this.ticks = ticks;
+			this.nanoseconds = nanoseconds;
+		}
+
+		/**
+		 * Record one occurrence.
+		 * 
+		 * @param ticks the number of simulated ticks it took.
+		 * @param nanoseconds the number of host nanoseconds it took.
+		 */
+		public void record(long ticks, long nanoseconds) {
+			this.ticks.record(ticks);
+			this.nanoseconds.record(nanoseconds);
+		}
+
+		private final Histogram ticks, nanoseconds;
+	}
+
+	private String fileName;
+
+	private String format;
+
+	private TreeMap<String, Metric> metrics = new TreeMap<String, Metric>();
+
+	private HashMap<String, Latency> latencies = new HashMap<String, Latency>();
+
+	private static final String prefix = "nachos_";
+}
@@ -174,6 +174,10 @@ public class NetworkLink {
 					incomingPacket = new Packet(incomingBytes);
 
 					privilege.stats.numPacketsReceived++;
+					Machine.eventTrace().record(
+							EventTrace.eventPacketReceive,
+							incomingPacket.srcLink, incomingPacket.dstLink,
+							incomingPacket.contents.length);
 				}
 				catch (MalformedPacketException e) {
 				}
@@ -256,6 +260,9 @@ public class NetworkLink {
 		if (Machine.autoGrader().canSendPacket(privilege)
 				&& Lib.random() <= reliability) {
 			// ok, no drop
+			Machine.eventTrace().record(EventTrace.eventPacketSend,
+					outgoingPacket.srcLink, outgoingPacket.dstLink,
+					outgoingPacket.contents.length);
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
 					sendPacket();
@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -38,12 +41,33 @@ public final class Processor {
 		usingTLB = (clsVMKernel != null && clsVMKernel
 				.isAssignableFrom(clsKernel));
 
+		jit = Config.getBoolean("Processor.jit", false);
+
+		String interpreter = Config.getString("Processor.interpreter",
+				"switch");
+		if (interpreter.equals("threaded"))
+			threaded = true;
+		else
+			Lib.assertTrue(interpreter.equals("switch"),
+					"Processor.interpreter must be switch or threaded");
+
+		superinstructions = Config.getBoolean("Processor.superinstructions",
+				false);
+		Lib.assertTrue(threaded || !superinstructions,
+				"Processor.superinstructions requires the threaded interpreter");
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler(Config.getString("Processor.profileFile",
+					"profile.folded"));
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		memoryView = ByteBuffer.wrap(mainMemory).order(ByteOrder.LITTLE_ENDIAN);
+		decodedPages = new DecodedInstruction[numPhysPages][];
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -87,19 +111,203 @@ public final class Processor {
 
 		registers[regNextPC] = registers[regPC] + 4;
 
+		// the kernel has just been loading memory for this program
+		decodeEpoch++;
+		flushTranslationCache();
+
 		Machine.autoGrader().runProcessor(privilege);
 
 		Instruction inst = new Instruction();
+		Instruction tracedInst = new TracedInstruction();
+
+		while (true) {
+			if (tracing())
+				runTraced(tracedInst);
+			else if (profiler != null)
+				runProfiled(inst);
+			else
+				runUntraced(inst);
+		}
+	}
+
+	/**
+	 * Test whether any of the debug flags that make the processor print what
+	 * it is doing are enabled.
+	 * 
+	 * @return <tt>true</tt> if instructions must be executed by
+	 * <tt>runTraced()</tt>.
+	 */
+	private static boolean tracing() {
+		return Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+	}
+
+	/**
+	 * Execute instructions without producing any debugging output, until
+	 * tracing is enabled. The debug flags are only tested after control has
+	 * been in the kernel, since only the kernel can change them.
+	 * 
+	 * @param inst the instruction used to execute individual instructions.
+	 */
+	private void runUntraced(Instruction inst) {
+		while (true) {
+			boolean trapped = false;
+
+			try {
+				DecodedInstruction decoded = fetchDecoded(translateFetch(registers[regPC]));
+
+				if (jit) {
+					CompiledBlock block = compiledBlock(decoded);
+					if (block != null) {
+						// the block advances simulated time itself
+						int epoch = decodeEpoch;
+						runBlock(block);
+						if (decodeEpoch != epoch && tracing())
+							return;
+						continue;
+					}
+				}
+
+				if (threaded) {
+					Handler handler = getHandler(decoded, inst);
+
+					if (decoded.fused != null && canFuse(decoded))
+						decoded.fused.execute();
+					else
+						handler.execute();
+				}
+				else {
+					inst.run(decoded);
+				}
+			}
+			catch (MipsException e) {
+				e.handle();
+				trapped = true;
+			}
+
+			if ((endInstruction() || trapped) && tracing())
+				return;
+		}
+	}
 
+	/**
+	 * Execute instructions like <tt>runUntraced()</tt>, but count every
+	 * instruction and branch with the profiler. Compiled blocks and
+	 * superinstructions are never used, since they do not execute
+	 * instructions one at a time.
+	 * 
+	 * @param inst the instruction used to execute individual instructions.
+	 */
+	private void runProfiled(Instruction inst) {
 		while (true) {
+			boolean trapped = false;
+
+			try {
+				int pc = registers[regPC];
+				DecodedInstruction decoded = fetchDecoded(translateFetch(pc));
+
+				profiler.instruction(pc);
+
+				if (threaded)
+					getHandler(decoded, inst).execute();
+				else
+					inst.run(decoded);
+
+				if (Lib.test(Mips.BRANCH, decoded.flags))
+					profileBranch(pc, decoded);
+			}
+			catch (MipsException e) {
+				e.handle();
+				trapped = true;
+			}
+
+			if ((endInstruction() || trapped) && tracing())
+				return;
+		}
+	}
+
+	/**
+	 * Tell the profiler about a branch or jump that was just executed, and
+	 * about the call or return it makes, if any. A jump that links is a
+	 * call, and a <tt>jr $ra</tt> is a return.
+	 * 
+	 * @param pc the address of the branch.
+	 * @param decoded the branch.
+	 */
+	private void profileBranch(int pc, DecodedInstruction decoded) {
+		int target = registers[regNextPC];
+		boolean taken = (target != pc + 8);
+
+		profiler.branch(pc, taken);
+
+		if (Lib.test(Mips.LINK, decoded.flags)) {
+			if (taken)
+				profiler.call(target);
+		}
+		else if (decoded.operation == Mips.JUMP
+				&& decoded.format == Mips.RFMT && decoded.rs == regRA) {
+			profiler.ret();
+		}
+	}
+
+	/**
+	 * Tell the profiler which program the current address space is running.
+	 * Should be called whenever the kernel switches address spaces. Does
+	 * nothing unless <tt>Processor.profile</tt> is enabled.
+	 * 
+	 * @param image the executable of the program about to run.
+	 */
+	public void setProfileImage(Coff image) {
+		if (profiler != null)
+			profiler.setImage(image);
+	}
+
+	/**
+	 * Called by <tt>Coff</tt> when a program is loaded, while its sections are
+	 * still available to map addresses back to.
+	 * 
+	 * @param image the executable just loaded.
+	 */
+	void imageLoaded(Coff image) {
+		if (profiler != null)
+			profiler.addImage(image);
+	}
+
+	/**
+	 * Print the profile collected during the simulation, if profiling is
+	 * enabled. Called by <tt>Machine.halt()</tt>.
+	 */
+	void reportProfile() {
+		if (profiler != null) {
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					profiler.report();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Execute instructions, printing whatever the debug flags ask for, until
+	 * tracing is disabled again. Compiled blocks are never used, since they
+	 * do not produce any debugging output.
+	 * 
+	 * @param inst the instruction used to execute individual instructions.
+	 */
+	private void runTraced(Instruction inst) {
+		while (true) {
+			boolean trapped = false;
+
 			try {
 				inst.run();
 			}
 			catch (MipsException e) {
 				e.handle();
+				trapped = true;
 			}
 
-			privilege.interrupt.tick(false);
+			if ((endInstruction() || trapped) && !tracing())
+				return;
 		}
 	}
 
@@ -173,6 +381,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslationCache();
 	}
 
 	/**
@@ -214,6 +423,7 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		flushTranslationCache();
 	}
 
 	/**
@@ -276,12 +486,1030 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Prepare to transfer control to the kernel. Bring the simulated time up to
+	 * date, complete the delayed load in progress, and begin a new decode
+	 * epoch, since the kernel is free to modify main memory directly before
+	 * user code runs again. For the same reason, forget every cached
+	 * translation: the kernel may change any translation entry.
+	 */
+	private void enterKernel() {
+		settleTicks();
+		finishLoad();
+		decodeEpoch++;
+		flushTranslationCache();
+	}
+
+	/**
+	 * Account for the user tick taken by the instruction that just completed.
+	 * Ticks that cannot make an interrupt due are only counted, and added to
+	 * the simulated time all at once by <tt>settleTicks()</tt>; the tick that
+	 * does make an interrupt due goes through <tt>Interrupt.tick()</tt>.
+	 * 
+	 * @return <tt>true</tt> if pending interrupts were checked, in which case
+	 * the kernel may have run.
+	 */
+	private boolean endInstruction() {
+		if (quietTicks > 0) {
+			quietTicks--;
+			owedTicks++;
+			return false;
+		}
+
+		settleTicks();
+		privilege.interrupt.tick(false);
+		quietTicks = privilege.interrupt.quietUserTicks();
+		return true;
+	}
+
+	/**
+	 * Add the user ticks counted by <tt>endInstruction()</tt> to the simulated
+	 * time. Must be called before anything outside the processor can look at
+	 * the time.
+	 */
+	private void settleTicks() {
+		if (owedTicks > 0) {
+			privilege.interrupt.advance(owedTicks);
+			owedTicks = 0;
+		}
+
+		// the kernel might schedule an earlier interrupt
+		quietTicks = 0;
+	}
+
+	/**
+	 * Record a page fault or TLB miss in the event trace, stamped with the
+	 * user ticks not yet added to the simulated time.
+	 */
+	private void traceFault(int event, int vaddr) {
+		Machine.eventTrace().record(
+				privilege.stats.totalTicks + owedTicks * Stats.UserTick, event,
+				vaddr, 0, 0);
+	}
+
+	/**
+	 * Return the decoded form of the instruction at the specified physical
+	 * address, decoding it only if it is not already cached. An instruction
+	 * cached during an earlier decode epoch is reused only if its word in
+	 * memory has not changed since it was decoded.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction fetchDecoded(int paddr) {
+		int ppn = paddr / pageSize;
+
+		DecodedInstruction[] page = decodedPages[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodedPages[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		DecodedInstruction decoded = page[index];
+		if (decoded != null && decoded.epoch == decodeEpoch)
+			return decoded;
+
+		int value = memoryView.getInt(paddr);
+		if (decoded == null || decoded.value != value) {
+			decoded = new DecodedInstruction(value, paddr);
+			page[index] = decoded;
+		}
+
+		decoded.epoch = decodeEpoch;
+		return decoded;
+	}
+
+	/**
+	 * Return the compiled block starting with the specified instruction, which
+	 * is the next instruction to execute, or <tt>null</tt> if the instruction
+	 * should be interpreted. Counts how often each instruction starts
+	 * execution, and compiles a block once that count reaches
+	 * <tt>jitThreshold</tt>.
+	 * 
+	 * @param head the next instruction to execute.
+	 * @return the block starting with <i>head</i>, or <tt>null</tt>.
+	 */
+	private CompiledBlock compiledBlock(DecodedInstruction head) {
+		// blocks assume sequential execution, so never enter one in a delay slot
+		if (registers[regNextPC] != registers[regPC] + 4)
+			return null;
+
+		CompiledBlock block = head.block;
+
+		if (block != null) {
+			if (block.epoch == decodeEpoch || block.matchesMemory(memoryView)) {
+				block.epoch = decodeEpoch;
+				return block;
+			}
+
+			// the kernel has changed part of the block in memory
+			head.block = null;
+			head.hotness = 0;
+		}
+
+		if (head.hotness < 0 || ++head.hotness < jitThreshold)
+			return null;
+
+		block = compileBlock(head.paddr);
+		if (block == null) {
+			// don't count executions of this instruction any more
+			head.hotness = -1;
+			return null;
+		}
+
+		Lib.debug(dbgJIT, "compiled " + block.length
+				+ " instructions at paddr=0x" + Lib.toHexString(head.paddr));
+
+		head.block = block;
+		return block;
+	}
+
+	/**
+	 * Compile the straight-line instructions starting at the specified physical
+	 * address. The block ends before the first branch, jump, syscall, or
+	 * invalid instruction, or at the end of the page, since the next virtual
+	 * page might not be the next physical page.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the compiled block, or <tt>null</tt> if there are too few
+	 * instructions to be worth compiling.
+	 */
+	private CompiledBlock compileBlock(int paddr) {
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+		int maxLength = Math.min(maxBlockLength, (pageEnd - paddr) / 4);
+
+		int[] code = new int[maxLength * 4];
+		int length = 0;
+
+		while (length < maxLength) {
+			DecodedInstruction decoded = fetchDecoded(paddr + length * 4);
+			if (!CompiledBlock.compile(decoded, code, length * 4))
+				break;
+
+			length++;
+		}
+
+		if (length < 2)
+			return null;
+
+		CompiledBlock block = new CompiledBlock(memoryView, paddr, length, code);
+		block.epoch = decodeEpoch;
+		return block;
+	}
+
+	/**
+	 * Execute a compiled block, starting at the current PC. Accounts for the
+	 * simulated time of every instruction, exactly as the interpreter would,
+	 * and returns early if an interrupt handler runs, since the kernel might
+	 * then have changed memory or the address space.
+	 * 
+	 * @param block the block to execute.
+	 * @exception MipsException if an instruction causes an exception. All
+	 * earlier instructions in the block will have completed, and the PC will
+	 * identify the instruction that caused it.
+	 */
+	private void runBlock(CompiledBlock block) throws MipsException {
+		int[] code = block.code;
+		int[] r = registers;
+		int epoch = decodeEpoch;
+		int pc = r[regPC];
+		int end = block.length * 4;
+
+		try {
+			for (int i = 0; i < end; i += 4) {
+				int d = code[i + 1], s = code[i + 2], t = code[i + 3];
+				int result = 0;
+				long wide;
+				boolean hasResult = true;
+
+				switch (code[i]) {
+				case CompiledBlock.ADD:
+					wide = (long) r[s] + r[t];
+					if (Lib.test(wide, 31) != Lib.test(wide, 32))
+						throw trap(exceptionOverflow);
+					result = (int) wide;
+					break;
+				case CompiledBlock.ADDU:
+					result = r[s] + r[t];
+					break;
+				case CompiledBlock.ADDI:
+					wide = (long) r[s] + t;
+					if (Lib.test(wide, 31) != Lib.test(wide, 32))
+						throw trap(exceptionOverflow);
+					result = (int) wide;
+					break;
+				case CompiledBlock.ADDIU:
+					result = r[s] + t;
+					break;
+				case CompiledBlock.SUB:
+					wide = (long) r[s] - r[t];
+					if (Lib.test(wide, 31) != Lib.test(wide, 32))
+						throw trap(exceptionOverflow);
+					result = (int) wide;
+					break;
+				case CompiledBlock.SUBU:
+					result = r[s] - r[t];
+					break;
+				case CompiledBlock.AND:
+					result = r[s] & r[t];
+					break;
+				case CompiledBlock.ANDI:
+					result = r[s] & t;
+					break;
+				case CompiledBlock.OR:
+					result = r[s] | r[t];
+					break;
+				case CompiledBlock.ORI:
+					result = r[s] | t;
+					break;
+				case CompiledBlock.XOR:
+					result = r[s] ^ r[t];
+					break;
+				case CompiledBlock.XORI:
+					result = r[s] ^ t;
+					break;
+				case CompiledBlock.NOR:
+					result = ~(r[s] | r[t]);
+					break;
+				case CompiledBlock.SLT:
+					result = (r[s] < r[t]) ? 1 : 0;
+					break;
+				case CompiledBlock.SLTI:
+					result = (r[s] < t) ? 1 : 0;
+					break;
+				case CompiledBlock.SLTU:
+					result = ((r[s] & 0xFFFFFFFFL) < (r[t] & 0xFFFFFFFFL)) ? 1 : 0;
+					break;
+				case CompiledBlock.SLTIU:
+					result = ((r[s] & 0xFFFFFFFFL) < t) ? 1 : 0;
+					break;
+				case CompiledBlock.LUI:
+					result = t << 16;
+					break;
+				case CompiledBlock.SLL:
+					result = r[s] << t;
+					break;
+				case CompiledBlock.SRL:
+					// same as the interpreter, which shifts the sign-extended value
+					result = (int) ((long) r[s] >>> t);
+					break;
+				case CompiledBlock.SRA:
+					result = r[s] >> t;
+					break;
+				case CompiledBlock.SLLV:
+					result = r[t] << (r[s] & 0x1F);
+					break;
+				case CompiledBlock.SRLV:
+					result = (int) ((long) r[t] >>> (r[s] & 0x1F));
+					break;
+				case CompiledBlock.SRAV:
+					result = r[t] >> (r[s] & 0x1F);
+					break;
+				case CompiledBlock.MFHI:
+					result = r[regHi];
+					break;
+				case CompiledBlock.MFLO:
+					result = r[regLo];
+					break;
+				case CompiledBlock.MTHI:
+					r[regHi] = r[s];
+					hasResult = false;
+					break;
+				case CompiledBlock.MTLO:
+					r[regLo] = r[s];
+					hasResult = false;
+					break;
+				case CompiledBlock.MULT:
+					wide = (long) r[s] * r[t];
+					r[regLo] = (int) wide;
+					r[regHi] = (int) (wide >> 32);
+					hasResult = false;
+					break;
+				case CompiledBlock.MULTU:
+					wide = (r[s] & 0xFFFFFFFFL) * (r[t] & 0xFFFFFFFFL);
+					r[regLo] = (int) wide;
+					r[regHi] = (int) (wide >> 32);
+					hasResult = false;
+					break;
+				case CompiledBlock.DIV:
+					divide(r[s], r[t]);
+					hasResult = false;
+					break;
+				case CompiledBlock.DIVU:
+					divide(r[s] & 0xFFFFFFFFL, r[t] & 0xFFFFFFFFL);
+					hasResult = false;
+					break;
+				case CompiledBlock.LOAD1:
+					delayedLoad(d, readMem(r[s] + t, 1), 0xFFFFFFFF);
+					hasResult = false;
+					break;
+				case CompiledBlock.LOAD2:
+					delayedLoad(d, readMem(r[s] + t, 2), 0xFFFFFFFF);
+					hasResult = false;
+					break;
+				case CompiledBlock.LOAD4:
+					delayedLoad(d, readMem(r[s] + t, 4), 0xFFFFFFFF);
+					hasResult = false;
+					break;
+				case CompiledBlock.LWL: {
+					int addr = r[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (3 - (addr & 0x3)) * 8;
+					delayedLoad(d, value << preserved, -1 << preserved);
+					hasResult = false;
+					break;
+				}
+				case CompiledBlock.LWR: {
+					int addr = r[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (addr & 0x3) * 8;
+					delayedLoad(d, value >>> preserved, -1 >>> preserved);
+					hasResult = false;
+					break;
+				}
+				case CompiledBlock.STORE1:
+					writeMem(r[s] + t, 1, r[d]);
+					hasResult = false;
+					break;
+				case CompiledBlock.STORE2:
+					writeMem(r[s] + t, 2, r[d]);
+					hasResult = false;
+					break;
+				case CompiledBlock.STORE4:
+					writeMem(r[s] + t, 4, r[d]);
+					hasResult = false;
+					break;
+				case CompiledBlock.SWL: {
+					int addr = r[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (3 - (addr & 0x3)) * 8;
+					int mask = -1 >>> preserved;
+					int merged = ((r[d] >>> preserved) & mask) | (value & ~mask);
+					writeMem(addr & ~0x3, 4, merged);
+					hasResult = false;
+					break;
+				}
+				case CompiledBlock.SWR: {
+					int addr = r[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (addr & 0x3) * 8;
+					int mask = -1 << preserved;
+					int merged = ((r[d] << preserved) & mask) | (value & ~mask);
+					writeMem(addr & ~0x3, 4, merged);
+					hasResult = false;
+					break;
+				}
+				default:
+					Lib.assertNotReached();
+				}
+
+				// loads complete the previous delayed load themselves; every
+				// other instruction, stores included, completes it afterwards
+				if (!CompiledBlock.isLoad(code[i]) && loadTarget != 0)
+					finishLoad();
+
+				if (hasResult && d != 0)
+					r[d] = result;
+
+				pc += 4;
+
+				if (quietTicks > 0) {
+					quietTicks--;
+					owedTicks++;
+				}
+				else {
+					r[regPC] = pc;
+					r[regNextPC] = pc + 4;
+
+					endInstruction();
+
+					if (decodeEpoch != epoch)
+						return;
+				}
+			}
+		}
+		catch (MipsException e) {
+			// pc still identifies the instruction that caused the exception
+			r[regPC] = pc;
+			r[regNextPC] = pc + 4;
+			throw e;
+		}
+
+		r[regPC] = pc;
+		r[regNextPC] = pc + 4;
+	}
+
+	/**
+	 * Divide two operands, exactly as the interpreter does for the DIV and
+	 * DIVU instructions.
+	 */
+	private void divide(long src1, long src2) throws MipsException {
+		if (src2 == 0)
+			throw trap(exceptionOverflow);
+
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo] * src2 + registers[regHi] != src1)
+			throw trap(exceptionOverflow);
+	}
+
+	/**
+	 * Complete an instruction that does not branch: finish the delayed load in
+	 * progress, write the instruction's result, and advance the PC.
+	 * 
+	 * @param dst the register to write, or 0 if the instruction has no
+	 * result.
+	 * @param result the instruction's result.
+	 */
+	private void complete(int dst, int result) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		if (dst != 0)
+			registers[dst] = result;
+
+		registers[regPC] = registers[regNextPC];
+		registers[regNextPC] += 4;
+	}
+
+	/**
+	 * Complete a branch or jump: finish the delayed load in progress, write
+	 * the return address if the instruction links, and advance the PC to the
+	 * delay slot, with the branch target to follow if the branch is taken.
+	 * 
+	 * @param taken <tt>true</tt> if the branch is taken.
+	 * @param target the branch target.
+	 * @param link the register to write the return address to, or 0 if the
+	 * instruction does not link.
+	 */
+	private void branch(boolean taken, int target, int link) {
+		int nextPC = registers[regNextPC] + 4;
+
+		if (loadTarget != 0)
+			finishLoad();
+
+		if (link != 0)
+			registers[link] = nextPC;
+
+		advancePC(taken ? target : nextPC);
+	}
+
+	/**
+	 * Return the handler for a decoded instruction, creating it (and looking
+	 * for a superinstruction starting there, if enabled) if necessary.
+	 * 
+	 * @param decoded the decoded instruction.
+	 * @param inst the instruction used to execute instructions without a
+	 * handler.
+	 * @return the instruction's handler.
+	 */
+	private Handler getHandler(DecodedInstruction decoded, Instruction inst) {
+		Handler handler = decoded.handler;
+		if (handler == null) {
+			handler = createHandler(decoded, inst);
+			decoded.handler = handler;
+
+			if (superinstructions)
+				decoded.fused = fuse(decoded, inst);
+		}
+
+		return handler;
+	}
+
+	/**
+	 * Create the handler for a decoded instruction. Instructions that have no
+	 * handler of their own, such as syscalls and invalid instructions, are
+	 * handed to <tt>inst</tt>, exactly as the switch interpreter would.
+	 * 
+	 * @param decoded the decoded instruction.
+	 * @param inst the instruction used to execute instructions without a
+	 * handler.
+	 * @return a handler that executes the instruction.
+	 */
+	private Handler createHandler(final DecodedInstruction decoded,
+			final Instruction inst) {
+		int[] code = new int[4];
+
+		if (CompiledBlock.compile(decoded, code, 0))
+			return createHandler(code[0], code[1], code[2], code[3]);
+
+		boolean link = Lib.test(Mips.LINK, decoded.flags)
+				&& Lib.test(Mips.DST, decoded.flags);
+		if (Lib.test(Mips.BRANCH, decoded.flags)
+				&& link == Lib.test(Mips.DST, decoded.flags)) {
+			int dst = link ? decoded.dstReg : 0;
+
+			switch (decoded.operation) {
+			case Mips.JUMP:
+				if (decoded.format == Mips.RFMT) {
+					return new Handler(dst, decoded.rs, 0) {
+						void execute() {
+							branch(true, registers[s], d);
+						}
+					};
+				}
+				else if (decoded.format == Mips.JFMT) {
+					return new Handler(dst, 0, decoded.target << 2) {
+						void execute() {
+							branch(true, (registers[regNextPC] & 0xF0000000)
+									| t, d);
+						}
+					};
+				}
+				break;
+			case Mips.BEQ:
+				return new Handler(decoded.rs, decoded.rt,
+						decoded.branchOffset) {
+					void execute() {
+						branch(registers[d] == registers[s],
+								registers[regNextPC] + t, 0);
+					}
+				};
+			case Mips.BNE:
+				return new Handler(decoded.rs, decoded.rt,
+						decoded.branchOffset) {
+					void execute() {
+						branch(registers[d] != registers[s],
+								registers[regNextPC] + t, 0);
+					}
+				};
+			case Mips.BLEZ:
+				return new Handler(dst, decoded.rs, decoded.branchOffset) {
+					void execute() {
+						branch(registers[s] <= 0, registers[regNextPC] + t, d);
+					}
+				};
+			case Mips.BGTZ:
+				return new Handler(dst, decoded.rs, decoded.branchOffset) {
+					void execute() {
+						branch(registers[s] > 0, registers[regNextPC] + t, d);
+					}
+				};
+			case Mips.BLTZ:
+				return new Handler(dst, decoded.rs, decoded.branchOffset) {
+					void execute() {
+						branch(registers[s] < 0, registers[regNextPC] + t, d);
+					}
+				};
+			case Mips.BGEZ:
+				return new Handler(dst, decoded.rs, decoded.branchOffset) {
+					void execute() {
+						branch(registers[s] >= 0, registers[regNextPC] + t, d);
+					}
+				};
+			}
+		}
+
+		// syscalls, unimplemented and invalid instructions
+		return new Handler(0, 0, 0) {
+			void execute() throws MipsException {
+				inst.run(decoded);
+			}
+		};
+	}
+
+	/**
+	 * Look for a superinstruction starting with a decoded instruction. The
+	 * pairs recognized are:
+	 * 
+	 * <ul>
+	 * <li><tt>lui</tt> followed by an <tt>ori</tt> or <tt>addiu</tt> of the
+	 * same register, which builds a constant that is computed here, once.
+	 * <li><tt>lw</tt> followed by any straight-line instruction, which is
+	 * executed without being fetched.
+	 * <li>a set-on-less-than followed by a <tt>beq</tt> or <tt>bne</tt> that
+	 * compares its result with <tt>$0</tt>.
+	 * </ul>
+	 * 
+	 * <p>
+	 * Both instructions must be in the same page.
+	 * 
+	 * @param decoded the first instruction, whose handler has been created.
+	 * @param inst the instruction used to execute instructions without a
+	 * handler.
+	 * @return the superinstruction, or <tt>null</tt> if the two instructions
+	 * cannot be fused.
+	 */
+	private Superinstruction fuse(DecodedInstruction decoded, Instruction inst) {
+		if ((decoded.paddr + 4) % pageSize == 0)
+			return null;
+
+		final DecodedInstruction second = fetchDecoded(decoded.paddr + 4);
+
+		int[] code = new int[8];
+		if (!CompiledBlock.compile(decoded, code, 0))
+			return null;
+
+		final Handler first = decoded.handler;
+		final int d = code[1];
+
+		switch (code[0]) {
+		case CompiledBlock.LUI:
+			if (d == 0 || !CompiledBlock.compile(second, code, 4)
+					|| code[6] != d)
+				return null;
+
+			final int upper = code[3] << 16;
+			final int dst = code[5];
+			final int constant;
+			if (code[4] == CompiledBlock.ORI)
+				constant = upper | code[7];
+			else if (code[4] == CompiledBlock.ADDIU)
+				constant = upper + code[7];
+			else
+				return null;
+
+			return new Superinstruction(second) {
+				void execute() {
+					complete(d, upper);
+					quietTick();
+					complete(dst, constant);
+				}
+			};
+
+		case CompiledBlock.LOAD4:
+			if (!CompiledBlock.compile(second, code, 4))
+				return null;
+
+			if (second.handler == null)
+				second.handler = createHandler(second, inst);
+
+			final Handler next = second.handler;
+			return new Superinstruction(second) {
+				void execute() throws MipsException {
+					first.execute();
+					quietTick();
+					next.execute();
+				}
+			};
+
+		case CompiledBlock.SLT:
+		case CompiledBlock.SLTI:
+		case CompiledBlock.SLTU:
+		case CompiledBlock.SLTIU:
+			if (d == 0
+					|| (second.operation != Mips.BEQ && second.operation != Mips.BNE)
+					|| !((second.rs == d && second.rt == 0) || (second.rs == 0 && second.rt == d)))
+				return null;
+
+			final boolean takenIfSet = (second.operation == Mips.BNE);
+			final int offset = second.branchOffset;
+			return new Superinstruction(second) {
+				void execute() throws MipsException {
+					first.execute();
+					quietTick();
+					branch((registers[d] != 0) == takenIfSet,
+							registers[regNextPC] + offset, 0);
+				}
+			};
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Test whether the superinstruction starting with a decoded instruction,
+	 * which is the next instruction to execute, can be executed now. Both of
+	 * its instructions must still be in memory, the first must not be in a
+	 * branch delay slot, and the tick between them must not make an
+	 * interrupt due.
+	 * 
+	 * @param decoded the first instruction of the superinstruction.
+	 * @return <tt>true</tt> if the superinstruction can be executed.
+	 */
+	private boolean canFuse(DecodedInstruction decoded) {
+		privilege.stats.numFusionCandidates++;
+
+		if (quietTicks == 0 || registers[regNextPC] != registers[regPC] + 4)
+			return false;
+
+		DecodedInstruction second = decoded.fused.second;
+		if (second.epoch != decodeEpoch && fetchDecoded(second.paddr) != second) {
+			// the second instruction was overwritten
+			decoded.fused = null;
+			return false;
+		}
+
+		privilege.stats.numSuperinstructions++;
+		return true;
+	}
+
+	/**
+	 * Account for the user tick taken by the first instruction of a
+	 * superinstruction, which is known not to make an interrupt due.
+	 */
+	private void quietTick() {
+		quietTicks--;
+		owedTicks++;
+	}
+
+	/**
+	 * Create the handler for a straight-line operation, as encoded by
+	 * <tt>CompiledBlock.compile()</tt>.
+	 */
+	private Handler createHandler(int operation, int dst, int src1, int src2) {
+		switch (operation) {
+		case CompiledBlock.ADD:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					long wide = (long) registers[s] + registers[t];
+					if (Lib.test(wide, 31) != Lib.test(wide, 32))
+						throw trap(exceptionOverflow);
+					complete(d, (int) wide);
+				}
+			};
+		case CompiledBlock.ADDU:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] + registers[t]);
+				}
+			};
+		case CompiledBlock.ADDI:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					long wide = (long) registers[s] + t;
+					if (Lib.test(wide, 31) != Lib.test(wide, 32))
+						throw trap(exceptionOverflow);
+					complete(d, (int) wide);
+				}
+			};
+		case CompiledBlock.ADDIU:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] + t);
+				}
+			};
+		case CompiledBlock.SUB:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					long wide = (long) registers[s] - registers[t];
+					if (Lib.test(wide, 31) != Lib.test(wide, 32))
+						throw trap(exceptionOverflow);
+					complete(d, (int) wide);
+				}
+			};
+		case CompiledBlock.SUBU:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] - registers[t]);
+				}
+			};
+		case CompiledBlock.AND:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] & registers[t]);
+				}
+			};
+		case CompiledBlock.ANDI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] & t);
+				}
+			};
+		case CompiledBlock.OR:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] | registers[t]);
+				}
+			};
+		case CompiledBlock.ORI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] | t);
+				}
+			};
+		case CompiledBlock.XOR:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] ^ registers[t]);
+				}
+			};
+		case CompiledBlock.XORI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] ^ t);
+				}
+			};
+		case CompiledBlock.NOR:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, ~(registers[s] | registers[t]));
+				}
+			};
+		case CompiledBlock.SLT:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, (registers[s] < registers[t]) ? 1 : 0);
+				}
+			};
+		case CompiledBlock.SLTI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, (registers[s] < t) ? 1 : 0);
+				}
+			};
+		case CompiledBlock.SLTU:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, ((registers[s] & 0xFFFFFFFFL) < (registers[t] & 0xFFFFFFFFL)) ? 1
+							: 0);
+				}
+			};
+		case CompiledBlock.SLTIU:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, ((registers[s] & 0xFFFFFFFFL) < t) ? 1 : 0);
+				}
+			};
+		case CompiledBlock.LUI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, t << 16);
+				}
+			};
+		case CompiledBlock.SLL:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] << t);
+				}
+			};
+		case CompiledBlock.SRL:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					// same as the interpreter, which shifts the sign-extended value
+					complete(d, (int) ((long) registers[s] >>> t));
+				}
+			};
+		case CompiledBlock.SRA:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[s] >> t);
+				}
+			};
+		case CompiledBlock.SLLV:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[t] << (registers[s] & 0x1F));
+				}
+			};
+		case CompiledBlock.SRLV:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, (int) ((long) registers[t] >>> (registers[s] & 0x1F)));
+				}
+			};
+		case CompiledBlock.SRAV:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[t] >> (registers[s] & 0x1F));
+				}
+			};
+		case CompiledBlock.MFHI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[regHi]);
+				}
+			};
+		case CompiledBlock.MFLO:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					complete(d, registers[regLo]);
+				}
+			};
+		case CompiledBlock.MTHI:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					registers[regHi] = registers[s];
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.MTLO:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					registers[regLo] = registers[s];
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.MULT:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					long wide = (long) registers[s] * registers[t];
+					registers[regLo] = (int) wide;
+					registers[regHi] = (int) (wide >> 32);
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.MULTU:
+			return new Handler(dst, src1, src2) {
+				void execute() {
+					long wide = (registers[s] & 0xFFFFFFFFL)
+							* (registers[t] & 0xFFFFFFFFL);
+					registers[regLo] = (int) wide;
+					registers[regHi] = (int) (wide >> 32);
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.DIV:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					divide(registers[s], registers[t]);
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.DIVU:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					divide(registers[s] & 0xFFFFFFFFL, registers[t] & 0xFFFFFFFFL);
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.LOAD1:
+		case CompiledBlock.LOAD2:
+		case CompiledBlock.LOAD4:
+			final int size = (operation == CompiledBlock.LOAD1) ? 1
+					: (operation == CompiledBlock.LOAD2) ? 2 : 4;
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					delayedLoad(d, readMem(registers[s] + t, size), 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		case CompiledBlock.LWL:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					int addr = registers[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (3 - (addr & 0x3)) * 8;
+					delayedLoad(d, value << preserved, -1 << preserved);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		case CompiledBlock.LWR:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					int addr = registers[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (addr & 0x3) * 8;
+					delayedLoad(d, value >>> preserved, -1 >>> preserved);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		case CompiledBlock.STORE1:
+		case CompiledBlock.STORE2:
+		case CompiledBlock.STORE4:
+			final int storeSize = (operation == CompiledBlock.STORE1) ? 1
+					: (operation == CompiledBlock.STORE2) ? 2 : 4;
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					writeMem(registers[s] + t, storeSize, registers[d]);
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.SWL:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					int addr = registers[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (3 - (addr & 0x3)) * 8;
+					int mask = -1 >>> preserved;
+					int merged = ((registers[d] >>> preserved) & mask)
+							| (value & ~mask);
+					writeMem(addr & ~0x3, 4, merged);
+					complete(0, 0);
+				}
+			};
+		case CompiledBlock.SWR:
+			return new Handler(dst, src1, src2) {
+				void execute() throws MipsException {
+					int addr = registers[s] + t;
+					int value = readMem(addr & ~0x3, 4);
+					int preserved = (addr & 0x3) * 8;
+					int mask = -1 << preserved;
+					int merged = ((registers[d] << preserved) & mask)
+							| (value & ~mask);
+					writeMem(addr & ~0x3, 4, merged);
+					complete(0, 0);
+				}
+			};
+		default:
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * Pages translated since the kernel last ran are remembered, so that
+	 * further accesses to them need not look up their translation entries.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
@@ -290,14 +1518,85 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-					+ (writing ? ", write" : ", read..."));
+		// a cached translation means the access is aligned to a page that was
+		// already translated, with the same used and dirty bit updates
+		if ((vaddr & (size - 1)) == 0) {
+			int vpn = pageFromAddress(vaddr);
+
+			if (vpn == lastDataVPN && (!writing || lastDataWritable))
+				return lastDataBase + offsetFromAddress(vaddr);
+
+			int slot = vpn & (translationCacheSize - 1);
+			if (cachedVPNs[slot] == vpn && (!writing || cachedWritable[slot])) {
+				lastDataVPN = vpn;
+				lastDataBase = cachedBases[slot];
+				lastDataWritable = cachedWritable[slot];
+				return lastDataBase + offsetFromAddress(vaddr);
+			}
+		}
 
+		int paddr = translateEntry(vaddr, size, writing);
+
+		int vpn = pageFromAddress(vaddr);
+		int slot = vpn & (translationCacheSize - 1);
+
+		lastDataVPN = cachedVPNs[slot] = vpn;
+		lastDataBase = cachedBases[slot] = paddr - offsetFromAddress(vaddr);
+		lastDataWritable = cachedWritable[slot] = writing;
+
+		return paddr;
+	}
+
+	/**
+	 * Translate the address of an instruction to fetch. The page of the last
+	 * instruction fetched is remembered separately from data pages, so that
+	 * loads and stores do not evict it.
+	 * 
+	 * @param pc the virtual address of the instruction.
+	 * @return the physical address of the instruction.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateFetch(int pc) throws MipsException {
+		int vpn = pageFromAddress(pc);
+
+		if (vpn == lastCodeVPN && (pc & 3) == 0)
+			return lastCodeBase + offsetFromAddress(pc);
+
+		int paddr = translate(pc, 4, false);
+
+		lastCodeVPN = vpn;
+		lastCodeBase = paddr - offsetFromAddress(pc);
+
+		return paddr;
+	}
+
+	/**
+	 * Forget every cached translation. Called whenever the translation
+	 * entries may have changed.
+	 */
+	private void flushTranslationCache() {
+		lastCodeVPN = -1;
+		lastDataVPN = -1;
+		for (int i = 0; i < translationCacheSize; i++)
+			cachedVPNs[i] = -1;
+	}
+
+	/**
+	 * Translate a virtual address into a physical address by looking up its
+	 * translation entry, and set the entry's used and dirty bits.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateEntry(int vaddr, int size, boolean writing)
+			throws MipsException {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw trap(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -312,7 +1611,8 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				traceFault(EventTrace.eventPageFault, vaddr);
+				throw trap(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
@@ -328,21 +1628,22 @@ public final class Processor {
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				traceFault(EventTrace.eventTLBMiss, vaddr);
+				throw trap(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw trap(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw trap(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -350,10 +1651,31 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
-		int paddr = (ppn * pageSize) + offset;
+		return (ppn * pageSize) + offset;
+	}
 
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	/**
+	 * Translate a virtual address like <tt>translate()</tt>, printing the
+	 * translation if processor tracing is enabled. Translations printed are
+	 * always looked up in full, and are not cached.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int traceTranslate(int vaddr, int size, boolean writing)
+			throws MipsException {
+		if (!Lib.test(dbgProcessor))
+			return translate(vaddr, size, writing);
+
+		System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+				+ (writing ? ", write" : ", read..."));
+
+		int paddr = translateEntry(vaddr, size, writing);
+
+		System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
@@ -367,14 +1689,28 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		return readPhysical(translate(vaddr, size, false), size);
+	}
+
+	/**
+	 * Read virtual memory like <tt>readMem()</tt>, printing the access if
+	 * processor tracing is enabled.
+	 * 
+	 * @param vaddr the virtual address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int traceReadMem(int vaddr, int size) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = readPhysical(traceTranslate(vaddr, size, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -383,6 +1719,25 @@ public final class Processor {
 		return value;
 	}
 
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of main memory at <i>paddr</i>.
+	 * Bytes and halfwords are sign-extended.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhysical(int paddr, int size) {
+		switch (size) {
+		case 4:
+			return memoryView.getInt(paddr);
+		case 2:
+			return memoryView.getShort(paddr);
+		default:
+			return mainMemory[paddr];
+		}
+	}
+
 	/**
 	 * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
 	 * starting at <i>vaddr</i>.
@@ -393,6 +1748,22 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		writePhysical(translate(vaddr, size, true), size, value);
+	}
+
+	/**
+	 * Write virtual memory like <tt>writeMem()</tt>, printing the access if
+	 * processor tracing is enabled.
+	 * 
+	 * @param vaddr the virtual address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private void traceWriteMem(int vaddr, int size, int value)
+			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
@@ -400,7 +1771,32 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		writePhysical(traceTranslate(vaddr, size, true), size, value);
+	}
+
+	/**
+	 * Write <i>value</i> to <i>size</i> (1, 2, or 4) bytes of main memory
+	 * starting at <i>paddr</i>.
+	 * 
+	 * @param paddr the physical address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 */
+	private void writePhysical(int paddr, int size, int value) {
+		switch (size) {
+		case 4:
+			memoryView.putInt(paddr, value);
+			break;
+		case 2:
+			memoryView.putShort(paddr, (short) value);
+			break;
+		default:
+			mainMemory[paddr] = (byte) value;
+			break;
+		}
+
+		// forget any instructions decoded from this page
+		decodedPages[paddr / pageSize] = null;
 	}
 
 	/**
@@ -568,36 +1964,155 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * A little-endian view of <tt>mainMemory</tt>, used to read and write
+	 * whole words and halfwords at once. Halfwords read through it are
+	 * sign-extended, exactly as <tt>Lib.bytesToInt()</tt> would return them.
+	 */
+	private ByteBuffer memoryView;
+
+	/**
+	 * Instructions decoded from main memory, indexed by physical page number
+	 * and then by word offset within the page. A page's array is allocated
+	 * the first time an instruction is fetched from it, and is discarded when
+	 * a user instruction writes to the page.
+	 */
+	private DecodedInstruction[][] decodedPages;
+
+	/**
+	 * The number of entries in the direct-mapped cache of recent data
+	 * translations. Must be a power of two.
+	 */
+	private static final int translationCacheSize = 16;
+
+	/**
+	 * Recent translations, indexed by the low bits of the virtual page number.
+	 * A slot holds the virtual page number (or -1 if empty), the physical
+	 * address of the start of the page, and whether the page has been written
+	 * through this translation. A translation is only cached once its entry's
+	 * used bit (and, for writes, dirty bit) has been set, so a cached access
+	 * leaves the entry exactly as a full translation would, and it is only
+	 * kept until the kernel next has a chance to change the entries.
+	 */
+	private int[] cachedVPNs = new int[translationCacheSize];
+	private int[] cachedBases = new int[translationCacheSize];
+	private boolean[] cachedWritable = new boolean[translationCacheSize];
+
+	/** The most recently used data translation, checked before the cache. */
+	private int lastDataVPN = -1, lastDataBase;
+	private boolean lastDataWritable;
+
+	/** The translation of the most recently fetched instruction's page. */
+	private int lastCodeVPN = -1, lastCodeBase;
+
+	/**
+	 * Advanced every time control passes to the kernel. Decoded instructions
+	 * from an earlier epoch must be checked against main memory before use.
+	 */
+	private int decodeEpoch = 0;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	/**
+	 * The number of user ticks that can still pass without an interrupt
+	 * becoming due.
+	 */
+	private long quietTicks = 0;
+
+	/** User ticks that have passed but are not yet in the simulated time. */
+	private long owedTicks = 0;
+
+	/** <tt>true</tt> if hot straight-line code should be compiled. */
+	private boolean jit;
+
+	/**
+	 * <tt>true</tt> if untraced instructions should be executed by their
+	 * handlers rather than by <tt>Instruction</tt>.
+	 */
+	private boolean threaded = false;
+
+	/**
+	 * <tt>true</tt> if common pairs of instructions should be executed as
+	 * superinstructions. Requires the threaded interpreter.
+	 */
+	private boolean superinstructions = false;
+
+	/** Counts executed instructions, if <tt>Processor.profile</tt> is set. */
+	private Profiler profiler = null;
+
+	/**
+	 * The number of times an instruction must start execution before a block
+	 * is compiled starting with it.
+	 */
+	private static final int jitThreshold = 100;
+
+	/** The maximum number of instructions in a compiled block. */
+	private static final int maxBlockLength = 64;
+
 	private static final char dbgProcessor = 'p';
 
 	private static final char dbgDisassemble = 'm';
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgJIT = 'j';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
-			finishLoad();
+			enterKernel();
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * Return the processor's exception, set to the specified cause. The same
+	 * exception is thrown every time, so that traps do not allocate.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException trap(int cause) {
+		Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-			this.cause = cause;
-		}
+		trap.cause = cause;
+		trap.hasBadVAddr = false;
+		return trap;
+	}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+	/**
+	 * Return the processor's exception, set to the specified cause and bad
+	 * virtual address.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException trap(int cause, int badVAddr) {
+		trap(cause);
+
+		trap.hasBadVAddr = true;
+		trap.badVAddr = badVAddr;
+		return trap;
+	}
+
+	/** The only exception the processor throws. */
+	private final MipsException trap = new MipsException();
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
+	/**
+	 * An exception raised by a user instruction. Only one is ever allocated,
+	 * and it has no stack trace, since it is used for control transfer
+	 * rather than to report an error.
+	 */
+	private class MipsException extends Exception {
+		public MipsException() {
+			super(null, null, false, false);
 		}
 
 		public void handle() {
+			// the exception is reused, and the kernel may trap again before
+			// this returns, on behalf of another thread
+			int cause = this.cause;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -606,7 +2121,7 @@ public final class Processor {
 			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
 				System.out.println("exception: " + exceptionNames[cause]);
 
-			finishLoad();
+			enterKernel();
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -614,7 +2129,38 @@ public final class Processor {
 			if (!Machine.autoGrader().exceptionHandler(privilege))
 				return;
 
+			if (Machine.metrics().enabled())
+				runMeasured(cause);
+			else
+				exceptionHandler.run();
+		}
+
+		private void runMeasured(int cause) {
+			String name, label, value;
+
+			if (cause == exceptionSyscall) {
+				name = "syscall_latency";
+				label = "syscall";
+				value = Integer.toString(readRegister(regV0));
+			}
+			else if (cause == exceptionPageFault || cause == exceptionTLBMiss) {
+				name = "page_fault_service";
+				label = "exception";
+				value = exceptionNames[cause];
+			}
+			else {
+				exceptionHandler.run();
+				return;
+			}
+
+			long ticks = privilege.stats.totalTicks;
+			long time = System.nanoTime();
+
 			exceptionHandler.run();
+
+			// syscalls that never return, like exit, are not recorded
+			Machine.metrics().latency(name, label, value).record(
+					privilege.stats.totalTicks - ticks, System.nanoTime() - time);
 		}
 
 		private boolean hasBadVAddr = false;
@@ -631,88 +2177,64 @@ public final class Processor {
 			writeBack();
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		public void run(DecodedInstruction decoded) throws MipsException {
+			this.decoded = decoded;
+			decode();
+			execute();
+			writeBack();
 		}
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+		boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
 
-			value = readMem(registers[regPC], 4);
+		int readMem(int vaddr, int size) throws MipsException {
+			return Processor.this.readMem(vaddr, size);
 		}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+		void writeMem(int vaddr, int size, int value) throws MipsException {
+			Processor.this.writeMem(vaddr, size, value);
+		}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+		void fetch() throws MipsException {
+			decoded = fetchDecoded(translateFetch(registers[regPC]));
+		}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+		void decode() {
+			value = decoded.value;
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -732,12 +2254,9 @@ public final class Processor {
 				src1 &= 0xFFFFFFFFL;
 				src2 &= 0xFFFFFFFFL;
 			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
-		private void print() {
+		void print() {
 			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
 					&& !Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -860,7 +2379,7 @@ public final class Processor {
 				System.out.print("\n");
 		}
 
-		private void execute() throws MipsException {
+		void execute() throws MipsException {
 			int value;
 			int preserved;
 
@@ -877,15 +2396,7 @@ public final class Processor {
 				registers[regHi] = (int) Lib.extract(dst, 32, 32);
 				break;
 			case Mips.DIV:
-				try {
-					registers[regLo] = (int) (src1 / src2);
-					registers[regHi] = (int) (src1 % src2);
-					if (registers[regLo] * src2 + registers[regHi] != src1)
-						throw new ArithmeticException();
-				}
-				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
-				}
+				divide(src1, src2);
 				break;
 
 			case Mips.SLL:
@@ -954,7 +2465,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw trap(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1025,17 +2536,17 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw trap(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
 			}
 		}
 
-		private void writeBack() throws MipsException {
+		void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw trap(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1048,26 +2559,16 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
-					System.out.print("#0x" + Lib.toHexString((int) dst));
-					if (test(Mips.DELAYEDLOAD))
-						System.out.print(" (delayed load)");
-				}
-			}
-
 			if (test(Mips.BRANCH) && branch) {
 				nextPC = jtarget;
 			}
 
 			advancePC(nextPC);
-
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
+		DecodedInstruction decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1085,6 +2586,404 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * An instruction that prints what it does, as the debug flags ask.
+	 */
+	private class TracedInstruction extends Instruction {
+		void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			// trace the fetch like any other memory access if asked to
+			if (Lib.test(dbgProcessor))
+				decoded = new DecodedInstruction(readMem(registers[regPC], 4),
+						-1);
+			else
+				super.fetch();
+		}
+
+		int readMem(int vaddr, int size) throws MipsException {
+			return traceReadMem(vaddr, size);
+		}
+
+		void writeMem(int vaddr, int size, int value) throws MipsException {
+			traceWriteMem(vaddr, size, value);
+		}
+
+		void decode() {
+			super.decode();
+
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
+		}
+
+		void writeBack() throws MipsException {
+			super.writeBack();
+
+			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+				if (Lib.test(dbgFullDisassemble)) {
+					System.out.print("#0x" + Lib.toHexString((int) dst));
+					if (test(Mips.DELAYEDLOAD))
+						System.out.print(" (delayed load)");
+				}
+			}
+
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("\n");
+		}
+	}
+
+	/**
+	 * A single decoded instruction, ready to execute. A handler executes its
+	 * instruction completely, including finishing the delayed load in
+	 * progress and advancing the PC, exactly as <tt>Instruction</tt> would.
+	 * Handlers are immutable, so they are cached along with the decoded
+	 * instruction they were created from.
+	 * 
+	 * <p>
+	 * The meaning of the three operands depends on the instruction; see
+	 * <tt>CompiledBlock</tt> for straight-line instructions.
+	 */
+	private abstract class Handler {
+		Handler(int d, int s, int t) {
+			this.d = d;
+			this.s = s;
+			this.t = t;
+		}
+
+		/**
+		 * Execute the instruction.
+		 * 
+		 * @exception MipsException if the instruction caused an exception.
+		 */
+		abstract void execute() throws MipsException;
+
+		final int d, s, t;
+	}
+
+	/**
+	 * A pair of adjacent instructions executed as one. A superinstruction
+	 * executes both instructions exactly as their handlers would, and
+	 * accounts for the tick between them, so it is only used when that tick
+	 * cannot make an interrupt due.
+	 */
+	private abstract class Superinstruction {
+		Superinstruction(DecodedInstruction second) {
+			this.second = second;
+		}
+
+		/**
+		 * Execute both instructions.
+		 * 
+		 * @exception MipsException if either instruction caused an exception.
+		 */
+		abstract void execute() throws MipsException;
+
+		/** The second instruction, which must still be in memory. */
+		final DecodedInstruction second;
+	}
+
+	/**
+	 * The parts of an instruction that depend only on the instruction word, and
+	 * so can be decoded once and cached.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value, int paddr) {
+			this.value = value;
+			this.paddr = paddr;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets are always sign extended
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg, branchOffset;
+
+		/** The physical address this was decoded from. */
+		int paddr;
+
+		/** The decode epoch in which this was last checked against memory. */
+		int epoch;
+
+		/**
+		 * The number of times execution has started at this instruction, or -1
+		 * if no block can be compiled starting here.
+		 */
+		int hotness = 0;
+
+		/** The compiled block starting with this instruction, if any. */
+		CompiledBlock block = null;
+
+		/** The handler for this instruction, once one has been created. */
+		Handler handler = null;
+
+		/**
+		 * The superinstruction starting with this instruction, if any. Only
+		 * looked for when the handler is created.
+		 */
+		Superinstruction fused = null;
+	}
+
+	/**
+	 * A run of straight-line instructions compiled into specialized
+	 * operations. Each operation occupies four consecutive entries of
+	 * <tt>code</tt>: the operation, followed by the destination (or, for a
+	 * store, source) register, the base or first source register, and either
+	 * the second source register, an immediate, or a shift amount. Immediates
+	 * are stored already sign- or zero-extended, as the interpreter would use
+	 * them.
+	 * 
+	 * <p>
+	 * Blocks contain no branches, so they do not depend on the virtual address
+	 * at which they are executed.
+	 */
+	private static class CompiledBlock {
+		CompiledBlock(ByteBuffer memory, int paddr, int length, int[] code) {
+			this.paddr = paddr;
+			this.length = length;
+			this.code = code;
+
+			words = new int[length];
+			for (int i = 0; i < length; i++)
+				words[i] = memory.getInt(paddr + i * 4);
+		}
+
+		/**
+		 * Test whether the instructions this block was compiled from are still
+		 * in memory.
+		 * 
+		 * @param memory a little-endian view of main memory.
+		 * @return <tt>true</tt> if none of the instructions has changed.
+		 */
+		boolean matchesMemory(ByteBuffer memory) {
+			for (int i = 0; i < length; i++) {
+				if (memory.getInt(paddr + i * 4) != words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Compile a single instruction into <tt>code</tt>, if it can appear in
+		 * a compiled block.
+		 * 
+		 * @param decoded the instruction to compile.
+		 * @param code the array to write the operation into.
+		 * @param offset the index of the operation in <tt>code</tt>.
+		 * @return <tt>false</tt> if the instruction cannot be compiled.
+		 */
+		static boolean compile(DecodedInstruction decoded, int[] code,
+				int offset) {
+			int flags = decoded.flags;
+			boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+			boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+			boolean overflow = Lib.test(Mips.OVERFLOW, flags);
+
+			int operation, dst = decoded.dstReg, src1 = decoded.rs;
+			int src2 = immediate ? decoded.imm : decoded.rt;
+
+			switch (decoded.operation) {
+			case Mips.ADD:
+				if (immediate)
+					operation = overflow ? ADDI : ADDIU;
+				else
+					operation = overflow ? ADD : ADDU;
+				break;
+			case Mips.SUB:
+				operation = overflow ? SUB : SUBU;
+				break;
+			case Mips.AND:
+				operation = immediate ? ANDI : AND;
+				break;
+			case Mips.OR:
+				operation = immediate ? ORI : OR;
+				break;
+			case Mips.XOR:
+				operation = immediate ? XORI : XOR;
+				break;
+			case Mips.NOR:
+				operation = NOR;
+				break;
+			case Mips.SLT:
+				if (immediate)
+					operation = unsigned ? SLTIU : SLTI;
+				else
+					operation = unsigned ? SLTU : SLT;
+				break;
+			case Mips.LUI:
+				operation = LUI;
+				break;
+			case Mips.SLL:
+			case Mips.SRL:
+			case Mips.SRA:
+				if (Lib.test(Mips.SRC1SH, flags)) {
+					operation = (decoded.operation == Mips.SLL) ? SLL
+							: (decoded.operation == Mips.SRL) ? SRL : SRA;
+					src1 = decoded.rt;
+					src2 = decoded.sh;
+				}
+				else {
+					operation = (decoded.operation == Mips.SLL) ? SLLV
+							: (decoded.operation == Mips.SRL) ? SRLV : SRAV;
+				}
+				break;
+			case Mips.MFHI:
+				operation = MFHI;
+				break;
+			case Mips.MFLO:
+				operation = MFLO;
+				break;
+			case Mips.MTHI:
+				operation = MTHI;
+				break;
+			case Mips.MTLO:
+				operation = MTLO;
+				break;
+			case Mips.MULT:
+				operation = unsigned ? MULTU : MULT;
+				break;
+			case Mips.DIV:
+				operation = unsigned ? DIVU : DIV;
+				break;
+			case Mips.LOAD:
+				operation = (decoded.size == 1) ? LOAD1
+						: (decoded.size == 2) ? LOAD2 : LOAD4;
+				src2 = decoded.imm;
+				break;
+			case Mips.LWL:
+				operation = LWL;
+				src2 = decoded.imm;
+				break;
+			case Mips.LWR:
+				operation = LWR;
+				src2 = decoded.imm;
+				break;
+			case Mips.STORE:
+				operation = (decoded.size == 1) ? STORE1
+						: (decoded.size == 2) ? STORE2 : STORE4;
+				dst = decoded.rt;
+				src2 = decoded.imm;
+				break;
+			case Mips.SWL:
+				operation = SWL;
+				dst = decoded.rt;
+				src2 = decoded.imm;
+				break;
+			case Mips.SWR:
+				operation = SWR;
+				dst = decoded.rt;
+				src2 = decoded.imm;
+				break;
+			default:
+				// branches, jumps, syscalls, and invalid instructions
+				return false;
+			}
+
+			// only instructions with DST write their destination register
+			if (operation < LOAD1 && !Lib.test(Mips.DST, flags))
+				dst = 0;
+
+			code[offset] = operation;
+			code[offset + 1] = dst;
+			code[offset + 2] = src1;
+			code[offset + 3] = src2;
+			return true;
+		}
+
+		/** The physical address of the first instruction. */
+		int paddr;
+
+		/** The number of instructions in this block. */
+		int length;
+
+		/** The operations this block was compiled into. */
+		int[] code;
+
+		/** The instruction words this block was compiled from. */
+		int[] words;
+
+		/** The decode epoch in which this was last checked against memory. */
+		int epoch;
+
+		/**
+		 * Return <tt>true</tt> if an operation is a delayed load.
+		 */
+		static boolean isLoad(int operation) {
+			return operation >= LOAD1 && operation < STORE1;
+		}
+
+		// operations; everything from LOAD1 on is a load or store
+		static final int ADD = 0, ADDU = 1, ADDI = 2, ADDIU = 3, SUB = 4,
+				SUBU = 5, AND = 6, ANDI = 7, OR = 8, ORI = 9, XOR = 10,
+				XORI = 11, NOR = 12, SLT = 13, SLTI = 14, SLTU = 15,
+				SLTIU = 16, LUI = 17, SLL = 18, SRL = 19, SRA = 20, SLLV = 21,
+				SRLV = 22, SRAV = 23, MFHI = 24, MFLO = 25, MTHI = 26,
+				MTLO = 27, MULT = 28, MULTU = 29, DIV = 30, DIVU = 31,
+				LOAD1 = 32, LOAD2 = 33, LOAD4 = 34, LWL = 35, LWR = 36,
+				STORE1 = 37, STORE2 = 38, STORE4 = 39, SWL = 40, SWR = 41;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
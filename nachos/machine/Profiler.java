@@ -0,0 +1,366 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts how often each user instruction is executed, and how often each
+ * branch is taken, for the processor's profiled loop. Counts are kept per
+ * program, and are mapped back to the sections of the program's COFF file.
+ * The profiler also follows calls and returns, so that it can attribute
+ * every instruction to a call stack.
+ * 
+ * <p>
+ * At the end of the simulation, <tt>report()</tt> prints the hottest
+ * instructions of every program, and writes every call stack with its
+ * instruction count, in the collapsed format read by flame graph tools.
+ */
+final class Profiler {
+	/**
+	 * Allocate a new profiler.
+	 * 
+	 * @param stacksFileName the file to write collapsed call stacks to.
+	 */
+	Profiler(String stacksFileName) {
+		this.stacksFileName = stacksFileName;
+
+		current = new Context(getImage("unknown", null));
+	}
+
+	/**
+	 * Record the layout of a newly loaded program, while its sections are
+	 * still available.
+	 * 
+	 * @param coff the program's executable.
+	 */
+	void addImage(Coff coff) {
+		contexts.put(coff, new Context(getImage(coff.getName(), coff)));
+	}
+
+	/**
+	 * Attribute the instructions executed from now on to the specified
+	 * program. Each executable that is loaded has its own call stack.
+	 * 
+	 * @param coff the executable of the program now running.
+	 */
+	void setImage(Coff coff) {
+		if (coff == null)
+			return;
+
+		Context context = contexts.get(coff);
+		if (context == null) {
+			context = new Context(getImage(coff.getName(), null));
+			contexts.put(coff, context);
+		}
+
+		current = context;
+	}
+
+	private Image getImage(String name, Coff coff) {
+		Image image = images.get(name);
+		if (image == null) {
+			image = new Image(name, coff);
+			images.put(name, image);
+		}
+
+		return image;
+	}
+
+	/**
+	 * Count the execution of the instruction at <i>pc</i>.
+	 * 
+	 * @param pc the virtual address of the instruction.
+	 */
+	void instruction(int pc) {
+		current.image.counts(pc)[0]++;
+		current.frame.samples++;
+	}
+
+	/**
+	 * Count a branch or jump.
+	 * 
+	 * @param pc the virtual address of the branch.
+	 * @param taken <tt>true</tt> if the branch was taken.
+	 */
+	void branch(int pc, boolean taken) {
+		current.image.counts(pc)[taken ? 1 : 2]++;
+	}
+
+	/**
+	 * Enter the function at <i>target</i>.
+	 * 
+	 * @param target the virtual address of the function.
+	 */
+	void call(int target) {
+		current.frame = current.frame.getChild(target);
+	}
+
+	/**
+	 * Return from the current function.
+	 */
+	void ret() {
+		if (current.frame.parent != null)
+			current.frame = current.frame.parent;
+	}
+
+	/**
+	 * Print the hottest instructions of every program, and write the
+	 * collapsed call stacks.
+	 */
+	void report() {
+		List<Image> sorted = new ArrayList<Image>(images.values());
+		Collections.sort(sorted, new Comparator<Image>() {
+			public int compare(Image a, Image b) {
+				return Long.compare(b.total(), a.total());
+			}
+		});
+
+		for (Iterator<Image> i = sorted.iterator(); i.hasNext();) {
+			Image image = i.next();
+			if (image.total() > 0)
+				image.print();
+		}
+
+		try {
+			PrintWriter writer = new PrintWriter(new FileWriter(stacksFileName));
+			for (Iterator<Image> i = sorted.iterator(); i.hasNext();) {
+				Image image = i.next();
+				image.root.write(writer, image.name);
+			}
+			writer.close();
+
+			System.out.println("Profile: call stacks written to "
+					+ stacksFileName);
+		}
+		catch (IOException e) {
+			System.out.println("Profile: could not write " + stacksFileName);
+		}
+	}
+
+	/**
+	 * The counts for every program with the same name.
+	 */
+	private static class Image {
+		Image(String name, Coff coff) {
+			this.name = name;
+
+			int limit = 0;
+			if (coff != null) {
+				int numSections = coff.getNumSections();
+				sectionNames = new String[numSections];
+				sectionStarts = new int[numSections];
+				sectionEnds = new int[numSections];
+
+				for (int s = 0; s < numSections; s++) {
+					CoffSection section = coff.getSection(s);
+					sectionNames[s] = section.getName();
+					sectionStarts[s] = section.getFirstVPN()
+							* Processor.pageSize;
+					sectionEnds[s] = sectionStarts[s] + section.getLength()
+							* Processor.pageSize;
+					limit = Math.max(limit, sectionEnds[s]);
+				}
+			}
+			else {
+				sectionNames = new String[0];
+				sectionStarts = new int[0];
+				sectionEnds = new int[0];
+			}
+
+			counts = new long[limit / 4][];
+			root = new Frame(name, null);
+		}
+
+		/**
+		 * Return the counts for the instruction at <i>pc</i>: executions,
+		 * branches taken, and branches not taken.
+		 */
+		long[] counts(int pc) {
+			int index = pc >>> 2;
+
+			if (index < counts.length) {
+				long[] entry = counts[index];
+				if (entry == null) {
+					entry = new long[3];
+					counts[index] = entry;
+				}
+				return entry;
+			}
+
+			long[] entry = outside.get(pc);
+			if (entry == null) {
+				entry = new long[3];
+				outside.put(pc, entry);
+			}
+			return entry;
+		}
+
+		long total() {
+			return root.total();
+		}
+
+		String sectionName(int pc) {
+			for (int s = 0; s < sectionNames.length; s++) {
+				if (pc >= sectionStarts[s] && pc < sectionEnds[s])
+					return sectionNames[s];
+			}
+
+			return "?";
+		}
+
+		void print() {
+			final long total = total();
+
+			// collect every instruction executed at least once
+			final Map<Integer, long[]> all = new HashMap<Integer, long[]>(
+					outside);
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != null)
+					all.put(i * 4, counts[i]);
+			}
+
+			System.out.println("Profile of " + name + ": " + total
+					+ " instructions");
+
+			HashMap<String, Long> bySection = new HashMap<String, Long>();
+			for (Iterator<Map.Entry<Integer, long[]>> i = all.entrySet()
+					.iterator(); i.hasNext();) {
+				Map.Entry<Integer, long[]> entry = i.next();
+				String section = sectionName(entry.getKey());
+				Long sum = bySection.get(section);
+				bySection.put(section, (sum == null ? 0 : sum)
+						+ entry.getValue()[0]);
+			}
+			for (Iterator<Map.Entry<String, Long>> i = bySection.entrySet()
+					.iterator(); i.hasNext();) {
+				Map.Entry<String, Long> entry = i.next();
+				System.out.println("\tsection " + entry.getKey() + ": "
+						+ entry.getValue() + " ("
+						+ percent(entry.getValue(), total) + ")");
+			}
+
+			List<Integer> pcs = new ArrayList<Integer>(all.keySet());
+			Collections.sort(pcs, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int result = Long.compare(all.get(b)[0], all.get(a)[0]);
+					return (result != 0) ? result : a.compareTo(b);
+				}
+			});
+
+			for (int i = 0; i < pcs.size() && i < hotspots; i++) {
+				int pc = pcs.get(i);
+				long[] entry = all.get(pc);
+
+				String line = "\t0x" + Lib.toHexString(pc) + " "
+						+ sectionName(pc) + "\t" + entry[0] + " ("
+						+ percent(entry[0], total) + ")";
+				if (entry[1] + entry[2] > 0)
+					line += "\tbranch taken " + entry[1] + ", not taken "
+							+ entry[2];
+
+				System.out.println(line);
+			}
+		}
+
+		private static String percent(long count, long total) {
+			return (count * 1000 / total) / 10.0 + "%";
+		}
+
+		final String name;
+
+		final Frame root;
+
+		private String[] sectionNames;
+
+		private int[] sectionStarts, sectionEnds;
+
+		/** Counts for instructions inside the sections, indexed by pc / 4. */
+		private long[][] counts;
+
+		/** Counts for instructions outside the sections. */
+		private HashMap<Integer, long[]> outside = new HashMap<Integer, long[]>();
+
+		/** The number of hottest instructions to print. */
+		private static final int hotspots = 20;
+	}
+
+	/**
+	 * A call stack, identified by the functions called to reach it.
+	 */
+	private static class Frame {
+		Frame(String name, Frame parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		Frame getChild(int target) {
+			Frame child = children.get(target);
+			if (child == null) {
+				child = new Frame("0x" + Lib.toHexString(target), this);
+				children.put(target, child);
+			}
+
+			return child;
+		}
+
+		long total() {
+			long total = samples;
+			for (Iterator<Frame> i = children.values().iterator(); i.hasNext();)
+				total += i.next().total();
+
+			return total;
+		}
+
+		void write(PrintWriter writer, String path) {
+			if (samples > 0)
+				writer.println(path + " " + samples);
+
+			for (Iterator<Frame> i = children.values().iterator(); i.hasNext();) {
+				Frame child = i.next();
+				child.write(writer, path + ";" + child.name);
+			}
+		}
+
+		final String name;
+
+		final Frame parent;
+
+		long samples = 0;
+
+		private HashMap<Integer, Frame> children = new HashMap<Integer, Frame>();
+	}
+
+	/**
+	 * A running program: the counts it contributes to, and its current call
+	 * stack.
+	 */
+	private static class Context {
+		Context(Image image) {
+			this.image = image;
+			this.frame = image.root;
+		}
+
+		final Image image;
+
+		Frame frame;
+	}
+
+	private String stacksFileName;
+
+	private Context current;
+
+	private HashMap<String, Image> images = new HashMap<String, Image>();
+
+	private IdentityHashMap<Coff, Context> contexts = new IdentityHashMap<Coff, Context>();
+}
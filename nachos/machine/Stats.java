@@ -28,6 +28,37 @@ public final class Stats {
 				+ ", TLB misses " + numTLBMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (numFusionCandidates > 0)
+			System.out.println("Superinstructions: executed "
+					+ numSuperinstructions + " of " + numFusionCandidates
+					+ " candidates");
+		if (numDeadlineMisses > 0 || numBudgetOverruns > 0)
+			System.out.println("Real-time: deadline misses "
+					+ numDeadlineMisses + ", budget overruns "
+					+ numBudgetOverruns);
+	}
+
+	/**
+	 * Copy the statistics in this object into counters in a metrics registry.
+	 * 
+	 * @param metrics the registry to export to.
+	 */
+	public void export(Metrics metrics) {
+		metrics.counter("ticks", "mode", "kernel").set(kernelTicks);
+		metrics.counter("ticks", "mode", "user").set(userTicks);
+		metrics.counter("disk_reads").set(numDiskReads);
+		metrics.counter("disk_writes").set(numDiskWrites);
+		metrics.counter("console_reads").set(numConsoleReads);
+		metrics.counter("console_writes").set(numConsoleWrites);
+		metrics.counter("page_faults").set(numPageFaults);
+		metrics.counter("tlb_misses").set(numTLBMisses);
+		metrics.counter("packets_received").set(numPacketsReceived);
+		metrics.counter("packets_sent").set(numPacketsSent);
+		metrics.counter("superinstruction_candidates").set(
+				numFusionCandidates);
+		metrics.counter("superinstructions").set(numSuperinstructions);
+		metrics.counter("deadline_misses").set(numDeadlineMisses);
+		metrics.counter("budget_overruns").set(numBudgetOverruns);
 	}
 
 	/**
@@ -69,6 +100,32 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The number of times the processor was about to execute an instruction
+	 * that begins a superinstruction.
+	 */
+	public long numFusionCandidates = 0;
+
+	/**
+	 * The number of superinstructions the processor executed. Each one
+	 * counts as two user instructions in <tt>userTicks</tt>.
+	 */
+	public long numSuperinstructions = 0;
+
+	/**
+	 * The number of jobs of real-time kernel threads that finished after
+	 * their deadlines, as reported by the kernel through
+	 * <tt>Machine.recordDeadlineMiss()</tt>.
+	 */
+	public int numDeadlineMisses = 0;
+
+	/**
+	 * The number of jobs of real-time kernel threads that ran for longer than
+	 * their budgets, as reported by the kernel through
+	 * <tt>Machine.recordBudgetOverrun()</tt>.
+	 */
+	public int numBudgetOverruns = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
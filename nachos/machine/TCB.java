@@ -5,7 +5,14 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +28,24 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, and the JVM supports them (Java 21 or
+ * later), each TCB is backed by a virtual thread instead of a platform thread.
+ * Virtual threads are cheap enough that the limit of <tt>maxThreads</tt> TCBs
+ * does not apply, and a context switch parks and unparks a continuation
+ * rather than handing off between two OS threads.
+ * 
+ * <p>
+ * By default, a context switch hands off directly to the next thread: it
+ * sets that thread's <tt>running</tt> flag and unparks it, then spins briefly
+ * waiting for its own turn before parking. Setting <tt>TCB.directHandoff</tt>
+ * to <tt>false</tt> makes threads wait on a lock and condition instead.
+ * 
+ * <p>
+ * When a TCB is destroyed, its Java thread is not thrown away: up to
+ * <tt>TCB.threadPool</tt> (16 by default) such threads are kept parked, and
+ * the next TCB to start runs in one of them instead of in a new thread.
  */
 public final class TCB {
 	/**
@@ -39,6 +64,47 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false))
+			findVirtualThreadBuilder();
+
+		directHandoff = Config.getBoolean("TCB.directHandoff", true);
+
+		int poolSize = Config.getInteger("TCB.threadPool", 16);
+		if (poolSize > 0)
+			idleWorkers = new ArrayBlockingQueue<Worker>(poolSize);
+
+		// spinning only helps if the other thread can run meanwhile
+		if (usesVirtualThreads()
+				|| Runtime.getRuntime().availableProcessors() == 1)
+			spinLimit = 0;
+	}
+
+	/**
+	 * Find <tt>Thread.ofVirtual()</tt>, which only exists in Java 21 or later,
+	 * so it must be called through reflection.
+	 */
+	private static void findVirtualThreadBuilder() {
+		try {
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+					.invoke(null);
+			unstartedMethod = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			virtualThreadBuilder = null;
+			System.out.println("\nTCB: virtual threads are not supported by "
+					+ "this JVM, using platform threads");
+		}
+	}
+
+	/**
+	 * Test whether TCBs are backed by virtual threads.
+	 * 
+	 * @return <tt>true</tt> if TCBs are backed by virtual threads.
+	 */
+	public static boolean usesVirtualThreads() {
+		return virtualThreadBuilder != null;
 	}
 
 	/**
@@ -66,9 +132,11 @@ public final class TCB {
 
 		/*
 		 * Make sure there aren't too many running TCBs already. This limitation
-		 * exists in an effort to prevent wild thread usage.
+		 * exists in an effort to prevent wild thread usage, and does not apply
+		 * to virtual threads, which cost little more than their stacks.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(usesVirtualThreads()
+				|| runningThreads.size() < maxThreads);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -91,31 +159,38 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it:
+			 * one left idle by a destroyed TCB, if there is one, or else a new
+			 * one. Creating Java threads is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			final Worker worker = (idleWorkers != null) ? idleWorkers.poll()
+					: null;
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			if (worker != null) {
+				javaThread = worker.thread;
+			}
+			else {
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						javaThread = newWorker();
+					}
+				});
+			}
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
+			 * The Java thread isn't yet running this TCB, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * current TCB, starting the Java thread (or waking the idle one),
+			 * and waiting for it to wake us up from threadroot(). Once the new
+			 * TCB wakes us up, it's safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			if (worker != null)
+				worker.resume(this);
+			else
+				this.javaThread.start();
+
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -130,6 +205,28 @@ public final class TCB {
 		}
 	}
 
+	private Thread newWorker() {
+		Worker worker = new Worker();
+		worker.tcb = this;
+		worker.thread = newThread(worker);
+
+		return worker.thread;
+	}
+
+	private static Thread newThread(Runnable target) {
+		if (!usesVirtualThreads())
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedMethod.invoke(virtualThreadBuilder,
+					new Object[] { target });
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("could not create a virtual thread: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -157,6 +254,9 @@ public final class TCB {
 		if (this == currentTCB)
 			return;
 
+		if (Machine.metrics().enabled())
+			measureSwitch();
+
 		/*
 		 * There are some synchronization concerns here. As soon as we wake up
 		 * the next thread, we cannot assume anything about static variables, or
@@ -173,6 +273,19 @@ public final class TCB {
 		previous.yield();
 	}
 
+	private static void measureSwitch() {
+		long ticks = privilege.stats.totalTicks;
+		long time = System.nanoTime();
+
+		if (lastSwitchTime != -1) {
+			Machine.metrics().latency("context_switch_interval", null, null)
+					.record(ticks - lastSwitchTicks, time - lastSwitchTime);
+		}
+
+		lastSwitchTicks = ticks;
+		lastSwitchTime = time;
+	}
+
 	/**
 	 * Destroy this TCB. This TCB must not be in use by the current thread. This
 	 * TCB must also have been authorized to be destroyed by the autograder.
@@ -206,6 +319,28 @@ public final class TCB {
 		privilege.exit(0);
 	}
 
+	private static void stopAll() {
+		stopping = true;
+
+		TCB[] tcbs = runningThreads.toArray(new TCB[0]);
+		for (int i = 0; i < tcbs.length; i++) {
+			if (tcbs[i] != currentTCB) {
+				tcbs[i].done = true;
+				tcbs[i].interrupt();
+			}
+		}
+
+		if (currentTCB != null)
+			currentTCB.done = true;
+
+		// let the idle threads finish too
+		if (idleWorkers != null) {
+			Worker worker;
+			while ((worker = idleWorkers.poll()) != null)
+				LockSupport.unpark(worker.thread);
+		}
+	}
+
 	/**
 	 * Test if the current JVM thread belongs to a Nachos TCB. The AWT event
 	 * dispatcher is an example of a non-Nachos thread.
@@ -255,16 +390,16 @@ public final class TCB {
 				privilege.exit(1);
 			}
 
-			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			runningThreads.remove(this);
+			if (runningThreads.isEmpty() && !stopping)
 				privilege.exit(0);
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
 			e.printStackTrace();
 
-			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			runningThreads.remove(this);
+			if (runningThreads.isEmpty() && !stopping)
 				privilege.exit(1);
 			else
 				die();
@@ -291,32 +426,63 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
+	 * Waits on the condition bound to this TCB until its <tt>running</tt> flag is
 	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * With a direct handoff, this spins for a while first, since in a context
+	 * switch the next thread often hands control back quickly, and then parks
+	 * until <tt>interrupt()</tt> unparks it. Otherwise, this uses a lock rather
+	 * than a monitor because a virtual thread waiting on a monitor holds on to
+	 * the platform thread carrying it.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
+	private void waitForInterrupt() {
+		if (directHandoff) {
+			for (int i = 0; i < spinLimit && !running; i++)
+				;
+
+			// park() may return spuriously, so check the flag every time
+			while (!running)
+				LockSupport.park(this);
+
+			return;
+		}
+
+		lock.lock();
+		try {
+			while (!running)
+				wakeUp.awaitUninterruptibly();
+		}
+		finally {
+			lock.unlock();
 		}
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking its thread, or signalling the condition bound to it. Used
+	 * in the ping-pong process of starting and destroying TCBs, as well as in
+	 * context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		if (directHandoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+
+		lock.lock();
+		try {
+			running = true;
+			wakeUp.signal();
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,7 +508,7 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, unless they are backed by virtual threads.
 	 */
 	public static final int maxThreads = 250;
 
@@ -362,23 +528,46 @@ public final class TCB {
 	private static TCB currentTCB = null;
 
 	/**
-	 * A vector containing all <i>running</i> TCB objects. It is initialized to
-	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+	 * A set containing all <i>running</i> TCB objects. It is initialized to an
+	 * empty set when the <tt>TCB</tt> class is loaded. TCB objects are
 	 * added only in <tt>start(Runnable)</tt>, which can only be invoked once on
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
 	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
+	 * <tt>start(Runnable)</tt>, unless they are virtual threads, of which
+	 * there may be many thousands. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
-	 * first TCB is created, this vector is basically never empty.
+	 * first TCB is created, this set is basically never empty.
 	 */
-	private static Vector<TCB> runningThreads = new Vector<TCB>();
+	private static Set<TCB> runningThreads = Collections
+			.synchronizedSet(new HashSet<TCB>());
 
 	private static Privilege privilege;
 
 	private static KThread toBeDestroyed = null;
 
+	/** <tt>Thread.ofVirtual()</tt>, if TCBs use virtual threads. */
+	private static Object virtualThreadBuilder = null;
+
+	/** <tt>Thread.Builder.unstarted()</tt>. */
+	private static Method unstartedMethod;
+
+	/** <tt>true</tt> to hand off with <tt>LockSupport</tt>. */
+	private static boolean directHandoff = true;
+
+	/** The threads of destroyed TCBs, waiting to run new ones. */
+	private static ArrayBlockingQueue<Worker> idleWorkers = null;
+
+	/** How many times to check <tt>running</tt> before parking. */
+	private static int spinLimit = 1 << 14;
+
+	/** <tt>true</tt> once <tt>stopAll()</tt> has been called. */
+	private static volatile boolean stopping = false;
+
+	/** The time of the last switch, for the metrics. */
+	private static long lastSwitchTicks, lastSwitchTime = -1;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -401,9 +590,9 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because a direct handoff sets it without a lock.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -412,13 +601,59 @@ public final class TCB {
 	 */
 	private boolean done = false;
 
+	private ReentrantLock lock = new ReentrantLock();
+
+	private Condition wakeUp = lock.newCondition();
+
 	private KThread nachosThread = null;
 
 	private boolean associated = false;
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The body of a Java thread that runs TCBs other than the first. Once the
+	 * TCB it is running is destroyed, the thread parks in
+	 * <tt>idleWorkers</tt>, if there is room, until <tt>start()</tt> gives it
+	 * another TCB to run.
+	 */
+	private static class Worker implements Runnable {
+		public void run() {
+			while (true) {
+				TCB finished = tcb;
+				tcb = null;
+
+				finished.threadroot();
+
+				// only reuse threads whose TCB was destroyed properly
+				if (!finished.done || stopping || idleWorkers == null
+						|| !idleWorkers.offer(this))
+					return;
+
+				while (tcb == null) {
+					// stopAll() empties idleWorkers and then unparks us
+					if (stopping)
+						return;
+
+					LockSupport.park(this);
+				}
+			}
+		}
+
+		/**
+		 * Run a TCB in this idle thread.
+		 * 
+		 * @param tcb the TCB to run.
+		 */
+		void resume(TCB tcb) {
+			this.tcb = tcb;
+			LockSupport.unpark(thread);
+		}
+
+		private volatile TCB tcb;
+
+		private Thread thread;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -429,5 +664,9 @@ public final class TCB {
 		public void authorizeDestroy(KThread thread) {
 			TCB.authorizeDestroy(thread);
 		}
+
+		public void stopAll() {
+			TCB.stopAll();
+		}
 	}
 }
@@ -41,6 +41,39 @@ public class NachosSecurityManager extends SecurityManager {
 		return new PrivilegeProvider();
 	}
 
+	/**
+	 * Use this security manager without installing it, so that Nachos can
+	 * share the JVM with other simulations. Privileged operations work as
+	 * usual, but nothing is checked, and <tt>exit()</tt> stops every TCB and
+	 * unwinds the calling thread instead of exiting the JVM.
+	 */
+	public void embed() {
+		Lib.assertTrue(this != System.getSecurityManager());
+
+		embedded = true;
+	}
+
+	/**
+	 * Wait until embedded Nachos exits, and return the status it exited
+	 * with. The thread that started Nachos may finish long before Nachos
+	 * does.
+	 * 
+	 * @return the exit status.
+	 */
+	public synchronized int waitForExit() {
+		Lib.assertTrue(embedded);
+
+		while (!exited) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+			}
+		}
+
+		return exitStatus;
+	}
+
 	/**
 	 * Install this security manager.
 	 */
@@ -69,9 +102,26 @@ public class NachosSecurityManager extends SecurityManager {
 		}
 
 		public void exit(int exitStatus) {
+			if (embedded) {
+				// only the first exit counts; the rest are threads unwinding
+				if (!exiting) {
+					exiting = true;
+					invokeExitNotificationHandlers();
+
+					if (tcb != null)
+						tcb.stopAll();
+
+					NachosSecurityManager.this.exited(exitStatus);
+				}
+
+				throw new ThreadDeath();
+			}
+
 			invokeExitNotificationHandlers();
 			NachosSecurityManager.this.exit(exitStatus);
 		}
+
+		private boolean exiting = false;
 	}
 
 	private void enablePrivilege() {
@@ -109,6 +159,12 @@ public class NachosSecurityManager extends SecurityManager {
 		privilegeCount = 1;
 	}
 
+	private synchronized void exited(int exitStatus) {
+		this.exitStatus = exitStatus;
+		exited = true;
+		notifyAll();
+	}
+
 	private void exit(int exitStatus) {
 		forcePrivilege();
 		System.exit(exitStatus);
@@ -315,6 +371,12 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private boolean fullySecure;
 
+	private boolean embedded = false;
+
+	private boolean exited = false;
+
+	private int exitStatus = 0;
+
 	private Thread privileged = null;
 
 	private int privilegeCount = 0;
@@ -157,6 +157,25 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user ticks that can elapse before any pending
+		 * interrupt becomes due. The caller may account for that many ticks
+		 * with a single call to <tt>advance()</tt> instead of calling
+		 * <tt>tick(false)</tt> for each one.
+		 * 
+		 * @return the number of user ticks that can be advanced at once.
+		 */
+		public long quietUserTicks();
+
+		/**
+		 * Advance the simulated time by the specified number of user ticks,
+		 * without checking for interrupts. Must not advance past the number of
+		 * ticks returned by <tt>quietUserTicks()</tt>.
+		 * 
+		 * @param numTicks the number of user ticks that have elapsed.
+		 */
+		public void advance(long numTicks);
 	}
 
 	/**
@@ -191,5 +210,12 @@ public abstract class Privilege {
 		 * @param thread the thread whose TCB is about to be destroyed.
 		 */
 		public void authorizeDestroy(KThread thread);
+
+		/**
+		 * Wake every TCB other than the current one, and make it die, so that
+		 * Nachos can stop without exiting the JVM. Afterwards, the current TCB
+		 * must die as well.
+		 */
+		public void stopAll();
 	}
 }
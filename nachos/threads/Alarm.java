@@ -29,7 +29,8 @@ public class Alarm {
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, unless the scheduler's <tt>timerInterrupt()</tt> decides
+	 * that its time is not up yet.
 	 */
 	public void timerInterrupt() {
 		//Project 1.3
@@ -42,7 +43,8 @@ public class Alarm {
 			Lib.assertTrue(next.wakeTime <= Machine.timer().getTime());
 			Lib.debug(dbgInt, "  " + next.thread.getName());
 		}
-		KThread.yield();
+		if (ThreadedKernel.scheduler.timerInterrupt())
+			KThread.yield();
 		Machine.interrupt().restore(intStatus);
 		Lib.debug(dbgInt, " (end of Alarm.timerInterrupt)");
 	}
@@ -0,0 +1,237 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A priority scheduler that chooses the next thread in constant time, however
+ * many threads are waiting. It schedules exactly as <tt>PriorityScheduler</tt>
+ * does, donation included, and differs only in how its queues keep their
+ * waiting threads.
+ * 
+ * <p>
+ * Each queue keeps a list for every priority level, in the order the threads
+ * on it started waiting, and a bitmap with one bit per level, set when the
+ * level's list is not empty. The next thread is the first in the list of the
+ * highest set bit, which is found a 64-bit word at a time, and a thread that
+ * starts waiting goes at the end of its list. A waiting thread whose
+ * effective priority changes moves to the list for its new level, behind the
+ * threads there that have been waiting longer but ahead of those that started
+ * waiting after it, which may take a walk back from the end of that list.
+ * 
+ * <p>
+ * So adding a thread, removing one, and choosing the next take constant time,
+ * but moving a thread after a priority change takes time proportional to the
+ * number of threads that started waiting after it at its new level. This is
+ * deliberate: appending it at the end instead would be constant time, but
+ * would let a thread jump ahead of others that have waited longer at the
+ * same level, and the order would no longer match
+ * <tt>PriorityScheduler</tt>'s. Priority changes of waiting threads are rare
+ * next to adds and removes, and the walk stops at the first thread that
+ * started waiting before it.
+ * 
+ * <p>
+ * Priorities range from 0 to <tt>BitmapScheduler.priorityMaximum</tt>, 7 by
+ * default as in <tt>PriorityScheduler</tt>, but up to 139 or more if a kernel
+ * wants a range as wide as Linux's.
+ */
+public class BitmapScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new bitmap scheduler.
+	 */
+	public BitmapScheduler() {
+		priorityMaximum = Config.getInteger("BitmapScheduler.priorityMaximum",
+				7);
+		Lib.assertTrue(priorityMaximum >= priorityDefault);
+	}
+
+	/**
+	 * Allocate a new bitmap thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * priority from waiting threads to the owning thread.
+	 * @return a new bitmap thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new BitmapQueue(transferPriority);
+	}
+
+	/**
+	 * Return the highest priority a thread can have, as set by
+	 * <tt>BitmapScheduler.priorityMaximum</tt>.
+	 * 
+	 * @return the maximum priority.
+	 */
+	public int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps a list of waiting threads for each
+	 * priority level, and a bitmap of the levels whose lists are not empty.
+	 */
+	protected class BitmapQueue extends PriorityQueue {
+		BitmapQueue(boolean transferPriority) {
+			super(transferPriority);
+
+			heads = new BitmapWaiter[priorityMaximum + 1];
+			tails = new BitmapWaiter[priorityMaximum + 1];
+			bitmap = new long[priorityMaximum / 64 + 1];
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			int level = highestLevel();
+			return (level < 0) ? null : heads[level].state;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				BitmapWaiter waiter = heads[level];
+				for (; waiter != null; waiter = waiter.next)
+					System.out.print(" " + waiter.state.thread + " (" + level
+							+ ")");
+			}
+			System.out.println();
+		}
+
+		Waiter newWaiter(ThreadState state) {
+			return new BitmapWaiter(state, this);
+		}
+
+		void add(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			waiter.waitOrder = numAdded++;
+			insert((BitmapWaiter) waiter);
+
+			updateDonation();
+		}
+
+		void remove(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			unlink((BitmapWaiter) waiter);
+
+			updateDonation();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to the
+		 * list for its new level.
+		 */
+		void update(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			unlink((BitmapWaiter) waiter);
+			insert((BitmapWaiter) waiter);
+
+			updateDonation();
+		}
+
+		/**
+		 * Return the priority the waiting threads donate to the holder: the
+		 * highest level with a waiting thread.
+		 * 
+		 * @return the donation.
+		 */
+		protected int computeDonation() {
+			return Math.max(highestLevel(), priorityMinimum);
+		}
+
+		/**
+		 * Put a waiter on the list for its thread's effective priority, after
+		 * every waiter there that started waiting before it. A waiter that is
+		 * just starting to wait goes at the end in constant time; one moved by
+		 * <tt>update()</tt> walks back past every waiter that started waiting
+		 * after it, which is the cost of keeping the list in the order the
+		 * threads started waiting.
+		 */
+		private void insert(BitmapWaiter waiter) {
+			int level = waiter.state.getEffectivePriority();
+
+			BitmapWaiter previous = tails[level];
+			while (previous != null && previous.waitOrder > waiter.waitOrder)
+				previous = previous.previous;
+
+			waiter.level = level;
+			waiter.previous = previous;
+			waiter.next = (previous != null) ? previous.next : heads[level];
+
+			if (previous != null)
+				previous.next = waiter;
+			else
+				heads[level] = waiter;
+
+			if (waiter.next != null)
+				waiter.next.previous = waiter;
+			else
+				tails[level] = waiter;
+
+			bitmap[level >>> 6] |= 1L << (level & 63);
+		}
+
+		private void unlink(BitmapWaiter waiter) {
+			int level = waiter.level;
+
+			if (waiter.previous != null)
+				waiter.previous.next = waiter.next;
+			else
+				heads[level] = waiter.next;
+
+			if (waiter.next != null)
+				waiter.next.previous = waiter.previous;
+			else
+				tails[level] = waiter.previous;
+
+			waiter.next = waiter.previous = null;
+
+			if (heads[level] == null)
+				bitmap[level >>> 6] &= ~(1L << (level & 63));
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or -1 if there are
+		 * none.
+		 */
+		private int highestLevel() {
+			for (int word = bitmap.length - 1; word >= 0; word--) {
+				if (bitmap[word] != 0)
+					return word * 64 + 63
+							- Long.numberOfLeadingZeros(bitmap[word]);
+			}
+
+			return -1;
+		}
+
+		private BitmapWaiter[] heads, tails;
+
+		private long[] bitmap;
+
+		private long numAdded = 0;
+	}
+
+	/**
+	 * The place of a thread in a bitmap queue: the level whose list it is on,
+	 * and its neighbors there.
+	 */
+	protected class BitmapWaiter extends Waiter {
+		BitmapWaiter(ThreadState state, BitmapQueue queue) {
+			super(state, queue);
+		}
+
+		/** The level whose list this waiter is on. */
+		int level;
+
+		/** The neighbors of this waiter in that list. */
+		BitmapWaiter previous, next;
+	}
+
+	private int priorityMaximum;
+}
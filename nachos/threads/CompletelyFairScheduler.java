@@ -0,0 +1,527 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler in the style of Linux's completely fair scheduler. Each thread
+ * has a <i>virtual runtime</i>: the simulated ticks it has spent running,
+ * scaled down by its weight. Queues dequeue the thread with the least virtual
+ * runtime, so every thread gets a share of the processor proportional to its
+ * weight, and no runnable thread falls far behind.
+ * 
+ * <p>
+ * A thread's weight depends on its priority, from <tt>priorityMinimum</tt> to
+ * <tt>priorityMaximum</tt>, which correspond to nice values 19 to -20. Each
+ * step up in priority gives a thread about 25% more weight, as in Linux.
+ * 
+ * <p>
+ * The running thread is preempted at a timer interrupt once it has run for
+ * its slice of <tt>CompletelyFairScheduler.latency</tt> ticks, the period in
+ * which every runnable thread should get to run, in proportion to its share
+ * of the runnable threads' weight, but for no less than
+ * <tt>CompletelyFairScheduler.minGranularity</tt> ticks. A thread that wakes
+ * up is placed at most half a latency behind the least virtual runtime of the
+ * threads that kept running, so that it runs soon, without monopolizing the
+ * processor to catch up on the time it slept. A new thread starts level with
+ * them.
+ * 
+ * <p>
+ * Waiting threads are kept in a red-black tree, a <tt>TreeSet</tt>, so each
+ * queue operation takes time logarithmic in the number of waiting threads.
+ * Priority is not transferred: like <tt>RoundRobinScheduler</tt>, this
+ * scheduler ignores <tt>transferPriority</tt>.
+ */
+public class CompletelyFairScheduler extends Scheduler {
+	/**
+	 * Allocate a new completely fair scheduler.
+	 */
+	public CompletelyFairScheduler() {
+		latency = Config.getInteger("CompletelyFairScheduler.latency", 6000);
+		minGranularity = Config.getInteger(
+				"CompletelyFairScheduler.minGranularity", 1000);
+		Lib.assertTrue(latency > 0 && minGranularity > 0);
+	}
+
+	/**
+	 * Allocate a new completely fair thread queue.
+	 * 
+	 * @param transferPriority ignored.
+	 * @return a new completely fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getPriority();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getPriority();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	/**
+	 * Return the lowest priority a thread can have.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	public int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the highest priority a thread can have.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	public int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * Return the virtual runtime of the specified thread, in units of 1/1024
+	 * of a tick run at the default priority.
+	 * 
+	 * @param thread the thread whose virtual runtime to return.
+	 * @return the thread's virtual runtime.
+	 */
+	public long getVirtualRuntime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).vruntime;
+	}
+
+	/**
+	 * The default priority for a new thread, nice value 0.
+	 */
+	public static final int priorityDefault = 20;
+	/**
+	 * The minimum priority that a thread can have, nice value 19.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum priority that a thread can have, nice value -20.
+	 */
+	public static final int priorityMaximum = 40;
+
+	/**
+	 * Charge a yielding thread for the time it ran, or place a thread that
+	 * woke up or is new among the threads that kept running.
+	 */
+	public void readyThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		if (state == running) {
+			state.charge(getTime());
+			running = null;
+		}
+		else if (state.ran) {
+			state.setVruntime(Math.max(state.vruntime, minVruntime
+					- toVruntime(latency / 2, nice0Weight)));
+		}
+		else {
+			state.setVruntime(Math.max(state.vruntime, minVruntime));
+		}
+
+		state.countedWeight = state.weight;
+		readyWeight += state.weight;
+	}
+
+	/**
+	 * Charge the thread that ran before, which blocked if it did not yield,
+	 * and start timing the new one.
+	 */
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = getTime();
+
+		ThreadState state = getThreadState(thread);
+		if (running != null && running != state)
+			running.charge(now);
+
+		readyWeight -= state.countedWeight;
+		state.countedWeight = 0;
+
+		// the thread chosen to run had the least virtual runtime
+		minVruntime = Math.max(minVruntime, state.vruntime);
+
+		running = state;
+		state.runStart = now;
+		state.ran = true;
+	}
+
+	/**
+	 * Preempt the current thread if it has run for its slice.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (running == null)
+			return true;
+
+		return getTime() - running.runStart >= getSlice(running);
+	}
+
+	/**
+	 * Return how long a thread may run before it is preempted: its share of
+	 * the latency, by weight among the runnable threads.
+	 */
+	private long getSlice(ThreadState state) {
+		long totalWeight = readyWeight + state.weight;
+
+		return Math.max(latency * state.weight / totalWeight, minGranularity);
+	}
+
+	/**
+	 * Return the current time in simulated ticks. A subclass may substitute a
+	 * clock of its own, for example to drive the scheduler directly.
+	 * 
+	 * @return the current time.
+	 */
+	protected long getTime() {
+		return Machine.timer().getTime();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Convert ticks run at a weight into virtual runtime.
+	 */
+	private static long toVruntime(long ticks, int weight) {
+		return (ticks << 20) / weight;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a red-black
+	 * tree, ordered by virtual runtime and then by the order in which they
+	 * started waiting.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		FairQueue() {
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			next.acquire(this);
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			return waiting.isEmpty() ? null : waiting.first().state;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Waiter waiter : waiting)
+				System.out.print(" " + waiter.state.thread + " ("
+						+ waiter.state.vruntime + ")");
+			System.out.println();
+		}
+
+		void add(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			waiter.vruntime = waiter.state.vruntime;
+			waiter.waitOrder = numAdded++;
+			waiting.add(waiter);
+		}
+
+		void remove(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			waiting.remove(waiter);
+		}
+
+		private TreeSet<Waiter> waiting = new TreeSet<Waiter>(
+				new Comparator<Waiter>() {
+					public int compare(Waiter a, Waiter b) {
+						if (a.vruntime != b.vruntime)
+							return (a.vruntime < b.vruntime) ? -1 : 1;
+						else if (a.waitOrder != b.waitOrder)
+							return (a.waitOrder < b.waitOrder) ? -1 : 1;
+						else
+							return 0;
+					}
+				});
+
+		private long numAdded = 0;
+	}
+
+	/**
+	 * The place of a thread in a fair queue it is waiting for.
+	 */
+	protected class Waiter {
+		/**
+		 * Allocate a new <tt>Waiter</tt> for the specified thread in the
+		 * specified queue.
+		 * 
+		 * @param state the waiting thread.
+		 * @param queue the queue it is waiting for.
+		 */
+		public Waiter(ThreadState state, FairQueue queue) {
+			this.state = state;
+			this.queue = queue;
+		}
+
+		/** The waiting thread. */
+		protected ThreadState state;
+		/** The queue it is waiting for. */
+		protected FairQueue queue;
+
+		/**
+		 * The thread's virtual runtime when it was added, which the queue
+		 * orders it by. The thread leaves and rejoins its queues whenever its
+		 * virtual runtime changes, so this stays current.
+		 */
+		long vruntime;
+		/** When the thread started waiting, to break ties. */
+		long waitOrder;
+
+		/** The thread's place in the next queue it is waiting for, if any. */
+		Waiter nextWaiter = null;
+	}
+
+	/**
+	 * The scheduling state of a thread: its priority and weight, its virtual
+	 * runtime, and the queues it is waiting for, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			setPriority(priorityDefault);
+		}
+
+		/**
+		 * Return the priority of the associated thread.
+		 * 
+		 * @return the priority of the associated thread.
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Set the priority of the associated thread, and with it its weight.
+		 * 
+		 * @param priority the new priority.
+		 */
+		public void setPriority(int priority) {
+			// charge the time run so far at the old weight
+			if (this == running)
+				charge(getTime());
+
+			this.priority = priority;
+			weight = priorityToWeight[priorityMaximum - priority];
+
+			if (countedWeight != 0) {
+				readyWeight += weight - countedWeight;
+				countedWeight = weight;
+			}
+		}
+
+		/**
+		 * Add the time the associated thread has run since it last started
+		 * running, or was last charged, to its virtual runtime.
+		 * 
+		 * @param now the current time.
+		 */
+		void charge(long now) {
+			setVruntime(vruntime + toVruntime(now - runStart, weight));
+			runStart = now;
+		}
+
+		/**
+		 * Change the virtual runtime, moving the associated thread within
+		 * each queue it is waiting for, since the trees are ordered by it.
+		 * 
+		 * @param vruntime the new virtual runtime.
+		 */
+		void setVruntime(long vruntime) {
+			if (vruntime == this.vruntime)
+				return;
+
+			for (Waiter w = waiting; w != null; w = w.nextWaiter)
+				w.queue.remove(w);
+
+			this.vruntime = vruntime;
+
+			for (Waiter w = waiting; w != null; w = w.nextWaiter)
+				w.queue.add(w);
+		}
+
+		/**
+		 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+		 * the associated thread) is invoked on the specified queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 * 
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(FairQueue waitQueue) {
+			for (Waiter w = waiting; w != null; w = w.nextWaiter) {
+				if (w.queue == waitQueue)
+					return;
+			}
+
+			Waiter waiter = spare;
+			if (waiter != null) {
+				spare = null;
+				waiter.queue = waitQueue;
+			}
+			else {
+				waiter = new Waiter(this, waitQueue);
+			}
+
+			waiter.nextWaiter = waiting;
+			waiting = waiter;
+			waitQueue.add(waiter);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>, by <tt>acquire()</tt> or by being
+		 * dequeued with <tt>nextThread()</tt>. The thread stops waiting for
+		 * that queue, but not for any others.
+		 * 
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(FairQueue waitQueue) {
+			Waiter previous = null, waiter = waiting;
+			while (waiter != null && waiter.queue != waitQueue) {
+				previous = waiter;
+				waiter = waiter.nextWaiter;
+			}
+
+			if (waiter == null)
+				return;
+
+			if (previous == null)
+				waiting = waiter.nextWaiter;
+			else
+				previous.nextWaiter = waiter.nextWaiter;
+			waiter.nextWaiter = null;
+
+			waitQueue.remove(waiter);
+			spare = waiter;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The priority of the associated thread. */
+		protected int priority;
+		/** The weight that goes with the priority. */
+		protected int weight;
+		/** The virtual runtime of the associated thread. */
+		protected long vruntime = 0;
+		/** When the thread last started running, or was last charged. */
+		protected long runStart = 0;
+		/** <tt>true</tt> once the thread has run. */
+		protected boolean ran = false;
+
+		/**
+		 * The place of this thread in the last queue it started waiting for,
+		 * if any, linked to its places in the others.
+		 */
+		protected Waiter waiting = null;
+
+		/**
+		 * The place this thread last had in a queue, kept for the next queue
+		 * it waits for, since it goes back on the ready queue every time it
+		 * stops running.
+		 */
+		private Waiter spare = null;
+
+		/** The weight this thread adds to the ready threads, while ready. */
+		int countedWeight = 0;
+	}
+
+	/**
+	 * The weight of each priority, from <tt>priorityMaximum</tt> down, as in
+	 * Linux's <tt>sched_prio_to_weight</tt>.
+	 */
+	private static final int[] priorityToWeight = { 88761, 71755, 56483,
+			46273, 36291, 29154, 23254, 18705, 14949, 11916, 9548, 7620, 6100,
+			4904, 3906, 3121, 2501, 1991, 1586, 1277, 1024, 820, 655, 526, 423,
+			335, 272, 215, 172, 137, 110, 87, 70, 56, 45, 36, 29, 23, 18, 15 };
+
+	/** The weight of a thread at the default priority. */
+	private static final int nice0Weight = 1024;
+
+	private long latency;
+
+	private long minGranularity;
+
+	/** The total weight of the threads on the ready queue. */
+	private long readyWeight = 0;
+
+	/**
+	 * The virtual runtime of the threads that keep running: the most any
+	 * thread had when it started running, which never decreases.
+	 */
+	private long minVruntime = 0;
+
+	/** The thread that last started running, unless it has since yielded. */
+	private ThreadState running = null;
+}
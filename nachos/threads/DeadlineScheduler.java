@@ -0,0 +1,420 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with a real-time class, scheduled earliest deadline first, on
+ * top of the best-effort priority scheduling of <tt>PriorityScheduler</tt>.
+ * 
+ * <p>
+ * A thread joins the real-time class through <tt>setRealTime()</tt>, giving
+ * a period, a budget, and a relative deadline, all in simulated ticks. From
+ * then on it runs a job every period: each job is released at the start of a
+ * period, may run for up to the budget, and should finish, by calling
+ * <tt>waitForNextPeriod()</tt>, within the deadline of its release.
+ * 
+ * <p>
+ * Queues dequeue a waiting real-time thread before any best-effort thread,
+ * and among real-time threads, the one whose job has the earliest absolute
+ * deadline. Best-effort threads are scheduled by priority, with donation, as
+ * in <tt>PriorityScheduler</tt>. A queue with a real-time thread waiting for
+ * it donates <tt>priorityMaximum</tt> to its holder, so that a best-effort
+ * thread holding a lock a real-time thread needs runs before other
+ * best-effort threads.
+ * 
+ * <p>
+ * The time each real-time job runs is checked at every timer interrupt. A job
+ * that has used up its budget is counted as an overrun, and runs as a
+ * best-effort thread until it finishes the job, so that it cannot hold up
+ * other real-time threads. A job that has run past its deadline, or finishes
+ * after it, is counted as a deadline miss. Both counts appear in the
+ * statistics Nachos prints when it halts.
+ */
+public class DeadlineScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new deadline scheduler.
+	 */
+	public DeadlineScheduler() {
+	}
+
+	/**
+	 * Allocate a new deadline thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * priority from waiting threads to the owning thread.
+	 * @return a new deadline thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(transferPriority);
+	}
+
+	/**
+	 * Make the specified thread real-time, and release its first job now.
+	 * Must be called with interrupts disabled.
+	 * 
+	 * @param thread the thread to make real-time.
+	 * @param period the ticks between the releases of its jobs.
+	 * @param budget the ticks each job may run.
+	 * @param deadline the ticks after its release by which each job should
+	 * finish, no more than the period.
+	 */
+	public void setRealTime(KThread thread, long period, long budget,
+			long deadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+		DeadlineThreadState state = getDeadlineState(thread);
+		state.leaveQueues();
+
+		state.realTime = true;
+		state.period = period;
+		state.budget = budget;
+		state.deadline = deadline;
+
+		state.release(Machine.timer().getTime());
+
+		state.rejoinQueues();
+	}
+
+	/**
+	 * Return the specified thread to the best-effort class. Must be called
+	 * with interrupts disabled.
+	 * 
+	 * @param thread the thread to make best-effort.
+	 */
+	public void setBestEffort(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		DeadlineThreadState state = getDeadlineState(thread);
+		state.leaveQueues();
+
+		state.realTime = false;
+		state.throttled = false;
+
+		state.rejoinQueues();
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified thread is real-time. Must be called
+	 * with interrupts disabled.
+	 * 
+	 * @param thread the thread to check.
+	 * @return <tt>true</tt> if the thread is real-time.
+	 */
+	public boolean isRealTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getDeadlineState(thread).realTime;
+	}
+
+	/**
+	 * Finish the current job of the current thread, which must be real-time,
+	 * and sleep until its next job is released. If the next release has
+	 * already passed, return immediately.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		DeadlineThreadState state = getDeadlineState(KThread.currentThread());
+		Lib.assertTrue(state.realTime);
+
+		long now = Machine.timer().getTime();
+		state.checkDeadline(now);
+
+		state.leaveQueues();
+		state.release(state.releaseTime + state.period);
+		state.rejoinQueues();
+		long delay = state.releaseTime - now;
+
+		Machine.interrupt().restore(intStatus);
+
+		if (delay > 0)
+			ThreadedKernel.alarm.waitUntil(delay);
+	}
+
+	/**
+	 * Charge a yielding real-time thread for the time it ran.
+	 */
+	public void readyThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		DeadlineThreadState state = getDeadlineState(thread);
+		if (state == running) {
+			state.charge(Machine.timer().getTime());
+			running = null;
+		}
+	}
+
+	/**
+	 * Charge the thread that ran before, which blocked if it did not yield,
+	 * and start timing the new one.
+	 */
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+
+		DeadlineThreadState state = getDeadlineState(thread);
+		if (running != null && running != state)
+			running.charge(now);
+
+		running = state;
+		state.runStart = now;
+	}
+
+	/**
+	 * Check the running real-time job against its budget and deadline, and
+	 * always yield, so that the earliest deadline runs.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (running != null && running.realTime) {
+			long now = Machine.timer().getTime();
+			running.charge(now);
+
+			running.checkDeadline(now);
+
+			if (!running.throttled && running.used > running.budget) {
+				Machine.recordBudgetOverrun();
+
+				running.leaveQueues();
+				running.throttled = true;
+				running.rejoinQueues();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new DeadlineThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private DeadlineThreadState getDeadlineState(KThread thread) {
+		return (DeadlineThreadState) getThreadState(thread);
+	}
+
+	private static long deadlineOf(Waiter waiter) {
+		return ((DeadlineThreadState) waiter.state).absoluteDeadline;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting real-time threads ordered
+	 * by deadline, ahead of its best-effort threads, which it orders by
+	 * priority.
+	 */
+	protected class DeadlineQueue extends PriorityQueue {
+		DeadlineQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			if (!realTime.isEmpty())
+				return realTime.first().state;
+
+			return super.pickNextThread();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Waiter waiter : realTime)
+				System.out.print(" " + waiter.state.thread + " (deadline "
+						+ deadlineOf(waiter) + ")");
+			super.print();
+		}
+
+		void add(Waiter waiter) {
+			if (!((DeadlineThreadState) waiter.state).isScheduledRealTime()) {
+				super.add(waiter);
+				return;
+			}
+
+			Lib.assertTrue(waiter.queue == this);
+
+			waiter.waitOrder = numAdded++;
+			realTime.add(waiter);
+
+			updateDonation();
+		}
+
+		void remove(Waiter waiter) {
+			if (!isQueuedRealTime(waiter)) {
+				super.remove(waiter);
+				return;
+			}
+
+			Lib.assertTrue(waiter.queue == this);
+
+			realTime.remove(waiter);
+
+			updateDonation();
+		}
+
+		void update(Waiter waiter) {
+			// real-time threads are ordered by deadline, not priority
+			if (!isQueuedRealTime(waiter))
+				super.update(waiter);
+		}
+
+		/**
+		 * Return <tt>true</tt> if a waiter is among this queue's real-time
+		 * threads, which have no place in the heap.
+		 */
+		private boolean isQueuedRealTime(Waiter waiter) {
+			return waiter.index < 0;
+		}
+
+		/**
+		 * Return the priority the waiting threads donate to the holder: the
+		 * maximum if any of them are real-time.
+		 * 
+		 * @return the donation.
+		 */
+		protected int computeDonation() {
+			if (!realTime.isEmpty())
+				return priorityMaximum;
+
+			return super.computeDonation();
+		}
+
+		private TreeSet<Waiter> realTime = new TreeSet<Waiter>(
+				new Comparator<Waiter>() {
+					public int compare(Waiter a, Waiter b) {
+						long deadlineA = deadlineOf(a), deadlineB = deadlineOf(b);
+
+						if (deadlineA != deadlineB)
+							return (deadlineA < deadlineB) ? -1 : 1;
+						else if (a.waitOrder != b.waitOrder)
+							return (a.waitOrder < b.waitOrder) ? -1 : 1;
+						else
+							return 0;
+					}
+				});
+
+		private long numAdded = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a deadline scheduler: its priority,
+	 * as in a priority scheduler, and, if it is real-time, its period, budget,
+	 * and deadline, and the progress of its current job.
+	 */
+	protected class DeadlineThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>DeadlineThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public DeadlineThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return <tt>true</tt> if queues should schedule the associated thread
+		 * by deadline: if it is real-time, and has not overrun its budget.
+		 * 
+		 * @return <tt>true</tt> if the thread is scheduled as real-time.
+		 */
+		boolean isScheduledRealTime() {
+			return realTime && !throttled;
+		}
+
+		/**
+		 * Take the associated thread out of the queues it is waiting for, if
+		 * any, before a change to its class or deadline, which decide its
+		 * place in them.
+		 */
+		void leaveQueues() {
+			for (Waiter w = waiting; w != null; w = w.nextWaiter)
+				w.queue.remove(w);
+		}
+
+		/**
+		 * Put the associated thread back in the queues it is waiting for, at
+		 * its new places.
+		 */
+		void rejoinQueues() {
+			for (Waiter w = waiting; w != null; w = w.nextWaiter)
+				w.queue.add(w);
+		}
+
+		/**
+		 * Release a new job at the specified time. The associated thread must
+		 * not be in any queue, since its deadline changes.
+		 */
+		void release(long time) {
+			releaseTime = time;
+			absoluteDeadline = time + deadline;
+			used = 0;
+			throttled = false;
+			missed = false;
+		}
+
+		/**
+		 * Add the time the associated thread has run since it last started
+		 * running, or was last charged, to its current job.
+		 */
+		void charge(long now) {
+			used += now - runStart;
+			runStart = now;
+		}
+
+		/**
+		 * Count a deadline miss if the current job is past its deadline, once
+		 * per job.
+		 */
+		void checkDeadline(long now) {
+			if (realTime && !missed && now > absoluteDeadline) {
+				Machine.recordDeadlineMiss();
+				missed = true;
+			}
+		}
+
+		/** <tt>true</tt> if the associated thread is real-time. */
+		protected boolean realTime = false;
+		/** The ticks between releases. */
+		protected long period;
+		/** The ticks each job may run. */
+		protected long budget;
+		/** The ticks after its release by which each job should finish. */
+		protected long deadline;
+
+		/** When the current job was released. */
+		protected long releaseTime;
+		/** When the current job should finish. */
+		protected long absoluteDeadline;
+		/** The ticks the current job has run. */
+		protected long used = 0;
+		/** When the thread last started running, or was last charged. */
+		protected long runStart = 0;
+		/** <tt>true</tt> if the current job has overrun its budget. */
+		protected boolean throttled = false;
+		/** <tt>true</tt> if the current job has missed its deadline. */
+		protected boolean missed = false;
+	}
+
+	/** The thread that last started running, unless it has since yielded. */
+	private DeadlineThreadState running = null;
+}
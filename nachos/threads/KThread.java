@@ -277,8 +277,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
+			ThreadedKernel.scheduler.readyThread(this);
 			readyQueue.waitForAccess(this);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -332,12 +334,19 @@ public class KThread {
 
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
-	 * using <tt>run()</tt>.
+	 * using <tt>run()</tt>. If no thread is ready, run the idle thread. If the
+	 * idle thread is already running, nothing can happen until the next
+	 * interrupt, so let the interrupt controller skip ahead to it. This waits
+	 * for the idle thread, so that the scheduler charges the thread that ran
+	 * before it when it stopped, not after the skip.
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -371,6 +380,11 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		EventTrace trace = Machine.eventTrace();
+		if (trace.enabled())
+			trace.record(EventTrace.eventSwitch, currentThread.id, id, trace
+					.symbol(name));
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -393,6 +407,8 @@ public class KThread {
 
 		status = statusRunning;
 
+		ThreadedKernel.scheduler.runningThread(this);
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
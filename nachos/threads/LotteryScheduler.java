@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -25,6 +21,14 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree
+ * (binary indexed tree), so adding or removing a waiter, changing its
+ * tickets, and drawing the winner each take time logarithmic in the number of
+ * waiters. A thread's effective priority is its number of tickets, plus the
+ * total tickets of the threads waiting on each queue it holds that transfers
+ * priority. Effective priorities are capped at <tt>priorityMaximum</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +45,239 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	/**
+	 * Return the fewest tickets a thread can hold.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	public int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the most tickets a thread can hold.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	public int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread occupies a slot in a Fenwick tree over the waiters'
+	 * tickets, in which the tickets of the first <i>i</i> slots can be summed,
+	 * and the slot holding the <i>n</i>th ticket found, in logarithmic time.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Hold a lottery, and return the winner, which <tt>nextThread()</tt>
+		 * will then return. Every call holds a new lottery.
+		 * 
+		 * @return the winning thread, or <tt>null</tt> if none are waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = Math.min((long) (Lib.random() * totalTickets),
+						totalTickets - 1);
+
+			return waiters[findSlot(ticket)].state;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 0; slot < waiters.length; slot++) {
+				if (waiters[slot] != null)
+					System.out.print(" " + waiters[slot].state.thread + " ("
+							+ tickets[slot] + ")");
+			}
+			System.out.println();
+		}
+
+		void add(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			if (numFreeSlots == 0)
+				grow(Math.max(waiters.length * 2, 4));
+
+			// the waiter's index is its slot
+			int slot = freeSlots[--numFreeSlots];
+			waiters[slot] = waiter;
+			waiter.index = slot;
+			numWaiting++;
+
+			change(slot, waiter.state.getEffectivePriority());
+
+			updateDonation();
+		}
+
+		void remove(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			int slot = waiter.index;
+			change(slot, -tickets[slot]);
+
+			waiters[slot] = null;
+			freeSlots[numFreeSlots++] = slot;
+			waiter.index = -1;
+			numWaiting--;
+
+			updateDonation();
+		}
+
+		void update(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			int slot = waiter.index;
+			change(slot, waiter.state.getEffectivePriority() - tickets[slot]);
+
+			updateDonation();
+		}
+
+		/**
+		 * Return the tickets the waiting threads donate to the holder: all of
+		 * them.
+		 * 
+		 * @return the donation.
+		 */
+		protected int computeDonation() {
+			return (int) Math.min(totalTickets, priorityMaximum);
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to a slot.
+		 */
+		private void change(int slot, long delta) {
+			tickets[slot] += delta;
+			totalTickets += delta;
+
+			for (int i = slot + 1; i <= waiters.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the slot holding a ticket, numbering the tickets of the first
+		 * slot from 0, those of the second slot after them, and so on.
+		 */
+		private int findSlot(long ticket) {
+			int index = 0;
+			for (int step = Integer.highestOneBit(waiters.length); step > 0; step >>= 1) {
+				if (index + step <= waiters.length
+						&& tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			// index is the number of slots before the winner
+			return index;
+		}
+
+		private void grow(int capacity) {
+			int oldCapacity = waiters.length;
+
+			Waiter[] newWaiters = new Waiter[capacity];
+			long[] newTickets = new long[capacity];
+			System.arraycopy(waiters, 0, newWaiters, 0, oldCapacity);
+			System.arraycopy(tickets, 0, newTickets, 0, oldCapacity);
+			waiters = newWaiters;
+			tickets = newTickets;
+
+			// every slot is in use when the queue grows
+			freeSlots = new int[capacity];
+			for (int slot = capacity - 1; slot >= oldCapacity; slot--)
+				freeSlots[numFreeSlots++] = slot;
+
+			// rebuild the tree in linear time
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += tickets[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		private Waiter[] waiters = new Waiter[0];
+
+		private long[] tickets = new long[0];
+
+		/** The Fenwick tree over <tt>tickets</tt>, indexed from 1. */
+		private long[] tree = new long[1];
+
+		private int[] freeSlots = new int[0];
+
+		private int numFreeSlots = 0;
+
+		private int numWaiting = 0;
+
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Recompute the effective priority: the thread's own tickets, plus
+		 * every ticket donated by the queues it holds.
+		 */
+		protected void updateEffectivePriority() {
+			long newPriority = priority;
+			for (int i = 0; i < acquired.size(); i++)
+				newPriority += acquired.get(i).getDonation();
+
+			setEffectivePriority((int) Math.min(newPriority, priorityMaximum));
+		}
 	}
 }
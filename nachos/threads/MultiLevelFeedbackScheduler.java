@@ -0,0 +1,556 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler, which favors threads that block
+ * often, such as those reading from the console, over threads that use all
+ * the processor time they are given, without starving either.
+ * 
+ * <p>
+ * Each thread is at one of several levels, numbered from 0, the most
+ * favored. Queues dequeue a thread from the lowest nonempty level, and within
+ * a level, the thread that has been waiting longest. The levels are given
+ * increasing quanta by <tt>MultiLevelFeedbackScheduler.quanta</tt>, a
+ * comma-separated list of ticks, one per level, which is
+ * <tt>1000,2000,4000</tt> by default. New threads start at level 0.
+ * 
+ * <ul>
+ * <li>A thread that has run for its level's quantum, in total, is preempted
+ * at the next timer interrupt, and moves down a level.
+ * <li>A thread that blocks before then moves up a level.
+ * <li>A thread is also preempted at a timer interrupt if a thread at a lower
+ * level is ready.
+ * <li>Every <tt>MultiLevelFeedbackScheduler.boostInterval</tt> ticks, 40000 by
+ * default, every thread moves back to level 0, so that threads stuck at the
+ * bottom still get to run.
+ * </ul>
+ * 
+ * <p>
+ * The time each thread spends ready, from the moment it is added to the ready
+ * queue until it runs, is recorded in the <tt>scheduler_response_ticks</tt>
+ * histogram of <tt>Machine.metrics()</tt>, labeled by the thread's
+ * <tt>level</tt> as it starts running.
+ * 
+ * <p>
+ * Priority is not transferred: like <tt>RoundRobinScheduler</tt>, this
+ * scheduler ignores <tt>transferPriority</tt>, and thread priorities.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MultiLevelFeedbackScheduler() {
+		String[] values = Config.getString(
+				"MultiLevelFeedbackScheduler.quanta", "1000,2000,4000").split(
+				",");
+
+		quanta = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			try {
+				quanta[i] = Long.parseLong(values[i].trim());
+			}
+			catch (NumberFormatException e) {
+				Lib.assertNotReached("MultiLevelFeedbackScheduler.quanta: "
+						+ "bad quantum " + values[i]);
+			}
+			Lib.assertTrue(quanta[i] > 0);
+		}
+
+		boostInterval = Config.getInteger(
+				"MultiLevelFeedbackScheduler.boostInterval", 40000);
+		Lib.assertTrue(boostInterval > 0);
+
+		nextBoost = boostInterval;
+		numReady = new int[quanta.length];
+	}
+
+	/**
+	 * Allocate a new multi-level feedback thread queue.
+	 * 
+	 * @param transferPriority ignored.
+	 * @return a new multi-level feedback thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread.
+	 * 
+	 * @param thread the thread whose level to return.
+	 * @return the thread's level, 0 being the most favored.
+	 */
+	public int getLevel(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		refresh(state);
+		return state.level;
+	}
+
+	/**
+	 * Return the number of levels.
+	 * 
+	 * @return the number of levels, one per quantum.
+	 */
+	public int getNumLevels() {
+		return quanta.length;
+	}
+
+	/**
+	 * Charge a yielding thread for the time it ran, and note when it became
+	 * ready.
+	 */
+	public void readyThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+
+		ThreadState state = getThreadState(thread);
+		if (state == running) {
+			charge(state, now, false);
+			running = null;
+		}
+
+		refresh(state);
+		state.readySince = now;
+		numReady[state.level]++;
+	}
+
+	/**
+	 * Charge the thread that ran before, which blocked if it did not yield,
+	 * and record how long the new thread waited to run.
+	 */
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+
+		ThreadState state = getThreadState(thread);
+		if (running != null && running != state)
+			charge(running, now, true);
+
+		refresh(state);
+		if (state.readySince >= 0) {
+			numReady[state.level]--;
+			if (Machine.metrics().enabled())
+				Machine.metrics().histogram("scheduler_response_ticks",
+						"level", "" + state.level).record(now - state.readySince);
+			state.readySince = -1;
+		}
+
+		running = state;
+		state.runStart = now;
+	}
+
+	/**
+	 * Boost every thread if it is time to, and preempt the current thread if
+	 * its quantum has expired, or if a thread at a lower level is ready.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+
+		if (now >= nextBoost)
+			boost(now);
+
+		if (running == null)
+			return true;
+
+		refresh(running);
+		if (running.used + (now - running.runStart) >= quanta[running.level])
+			return true;
+
+		for (int level = 0; level < running.level; level++) {
+			if (numReady[level] > 0)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Add the time a thread has run since <tt>runningThread()</tt> to the
+	 * time it has used at its level, and move it down a level if that uses up
+	 * its quantum, or, if it blocked before then, up a level.
+	 */
+	private void charge(ThreadState state, long now, boolean blocked) {
+		refresh(state);
+
+		state.used += now - state.runStart;
+
+		if (state.used >= quanta[state.level])
+			state.setLevel(Math.min(state.level + 1, quanta.length - 1));
+		else if (blocked)
+			state.setLevel(Math.max(state.level - 1, 0));
+	}
+
+	/**
+	 * Move every thread to level 0. Rather than visit every thread now, this
+	 * starts a new epoch, and each thread and queue catches up the next time
+	 * it is used.
+	 */
+	private void boost(long now) {
+		epoch++;
+		nextBoost = now + boostInterval;
+
+		int total = 0;
+		for (int level = 0; level < numReady.length; level++) {
+			total += numReady[level];
+			numReady[level] = 0;
+		}
+		numReady[0] = total;
+	}
+
+	/**
+	 * Bring a thread up to date with the last boost, along with the queues it
+	 * is waiting on, if any.
+	 */
+	private void refresh(ThreadState state) {
+		for (Waiter w = state.waiting; w != null; w = w.nextWaiter)
+			w.queue.refresh();
+
+		if (state.epoch != epoch)
+			state.boost();
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps a FIFO list of waiting threads for
+	 * each level.
+	 */
+	protected class FeedbackQueue extends ThreadQueue {
+		FeedbackQueue() {
+			heads = new Waiter[quanta.length];
+			tails = new Waiter[quanta.length];
+			queueEpoch = epoch;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			next.acquire(this);
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			refresh();
+
+			for (int level = 0; level < heads.length; level++) {
+				if (heads[level] != null)
+					return heads[level].state;
+			}
+
+			return null;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+
+			for (int level = 0; level < heads.length; level++) {
+				Waiter waiter = heads[level];
+				for (; waiter != null; waiter = waiter.next)
+					System.out.print(" " + waiter.state.thread + " (" + level
+							+ ")");
+			}
+			System.out.println();
+		}
+
+		void add(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			refresh();
+			MultiLevelFeedbackScheduler.this.refresh(waiter.state);
+
+			append(waiter);
+		}
+
+		void remove(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			refresh();
+
+			unlink(waiter);
+		}
+
+		/**
+		 * Move a waiting thread whose level has changed to the end of the list
+		 * for its new level.
+		 */
+		void update(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			unlink(waiter);
+			append(waiter);
+		}
+
+		/**
+		 * Catch up with the last boost, by moving every waiting thread to
+		 * level 0, in the order they would have been dequeued. A thread that
+		 * is waiting for another queue too may have caught up already.
+		 */
+		void refresh() {
+			if (queueEpoch == epoch)
+				return;
+
+			queueEpoch = epoch;
+
+			Waiter head = null, tail = null;
+			for (int level = 0; level < heads.length; level++) {
+				if (heads[level] == null)
+					continue;
+
+				if (tail == null)
+					head = heads[level];
+				else
+					tail.next = heads[level];
+				heads[level].previous = tail;
+				tail = tails[level];
+
+				heads[level] = tails[level] = null;
+			}
+
+			heads[0] = head;
+			tails[0] = tail;
+
+			for (Waiter waiter = head; waiter != null; waiter = waiter.next) {
+				waiter.listLevel = 0;
+				if (waiter.state.epoch != epoch)
+					waiter.state.boost();
+			}
+		}
+
+		private void append(Waiter waiter) {
+			int level = waiter.state.level;
+			waiter.listLevel = level;
+			waiter.next = null;
+			waiter.previous = tails[level];
+
+			if (tails[level] != null)
+				tails[level].next = waiter;
+			else
+				heads[level] = waiter;
+			tails[level] = waiter;
+		}
+
+		private void unlink(Waiter waiter) {
+			int level = waiter.listLevel;
+
+			if (waiter.previous != null)
+				waiter.previous.next = waiter.next;
+			else
+				heads[level] = waiter.next;
+
+			if (waiter.next != null)
+				waiter.next.previous = waiter.previous;
+			else
+				tails[level] = waiter.previous;
+
+			waiter.next = waiter.previous = null;
+		}
+
+		private Waiter[] heads, tails;
+
+		/** The epoch this queue last caught up with. */
+		private int queueEpoch;
+	}
+
+	/**
+	 * The place of a thread in a feedback queue it is waiting for.
+	 */
+	protected class Waiter {
+		/**
+		 * Allocate a new <tt>Waiter</tt> for the specified thread in the
+		 * specified queue.
+		 * 
+		 * @param state the waiting thread.
+		 * @param queue the queue it is waiting for.
+		 */
+		public Waiter(ThreadState state, FeedbackQueue queue) {
+			this.state = state;
+			this.queue = queue;
+		}
+
+		/** The waiting thread. */
+		protected ThreadState state;
+		/** The queue it is waiting for. */
+		protected FeedbackQueue queue;
+
+		/**
+		 * The level whose list this waiter is on, which lags behind the
+		 * thread's level until the queue catches up with a boost.
+		 */
+		int listLevel;
+
+		/** The neighbors of this waiter in that list. */
+		Waiter previous, next;
+
+		/** The thread's place in the next queue it is waiting for, if any. */
+		Waiter nextWaiter = null;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, how much of that level's
+	 * quantum it has used, and the queues it is waiting for, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			this.epoch = MultiLevelFeedbackScheduler.this.epoch;
+		}
+
+		/**
+		 * Move the associated thread to another level, with a fresh quantum.
+		 * 
+		 * @param level the new level.
+		 */
+		void setLevel(int level) {
+			used = 0;
+
+			if (level == this.level)
+				return;
+
+			this.level = level;
+			for (Waiter w = waiting; w != null; w = w.nextWaiter)
+				w.queue.update(w);
+		}
+
+		/**
+		 * Move the associated thread to level 0 after a boost. The queues it
+		 * is waiting for, if any, move it to the right lists as they catch up.
+		 */
+		void boost() {
+			level = 0;
+			used = 0;
+			epoch = MultiLevelFeedbackScheduler.this.epoch;
+		}
+
+		/**
+		 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+		 * the associated thread) is invoked on the specified queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 * 
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(FeedbackQueue waitQueue) {
+			for (Waiter w = waiting; w != null; w = w.nextWaiter) {
+				if (w.queue == waitQueue)
+					return;
+			}
+
+			Waiter waiter = new Waiter(this, waitQueue);
+			waiter.nextWaiter = waiting;
+			waiting = waiter;
+			waitQueue.add(waiter);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>, through <tt>acquire()</tt> or
+		 * <tt>nextThread()</tt>, and so stops waiting for it, if it was.
+		 * 
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(FeedbackQueue waitQueue) {
+			Waiter previous = null, waiter = waiting;
+			while (waiter != null && waiter.queue != waitQueue) {
+				previous = waiter;
+				waiter = waiter.nextWaiter;
+			}
+
+			if (waiter == null)
+				return;
+
+			if (previous == null)
+				waiting = waiter.nextWaiter;
+			else
+				previous.nextWaiter = waiter.nextWaiter;
+			waiter.nextWaiter = null;
+
+			waitQueue.remove(waiter);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The level of the associated thread. */
+		protected int level = 0;
+		/** The ticks the thread has run at its level. */
+		protected long used = 0;
+		/** When the thread last started running. */
+		protected long runStart = 0;
+		/** When the thread was last added to the ready queue, or -1. */
+		protected long readySince = -1;
+
+		/**
+		 * The place of this thread in the last queue it started waiting for,
+		 * if any, linked to its places in the others.
+		 */
+		protected Waiter waiting = null;
+
+		/** The epoch this thread last caught up with. */
+		int epoch;
+	}
+
+	private long[] quanta;
+
+	private long boostInterval;
+
+	private long nextBoost;
+
+	/** The number of threads on the ready queue at each level. */
+	private int[] numReady;
+
+	/** The thread that last started running, unless it has since yielded. */
+	private ThreadState running = null;
+
+	/** The number of boosts so far. */
+	private int epoch = 0;
+}
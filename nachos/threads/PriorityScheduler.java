@@ -2,10 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Comparator;
-
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -71,7 +68,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
 		
 		ThreadState ts = getThreadState(thread);
 		
@@ -80,36 +78,6 @@ public class PriorityScheduler extends Scheduler {
 			ts.setPriority(priority);
 	}
 
-	public boolean increasePriority() {
-		boolean intStatus = Machine.interrupt().disable(), returnBool = true;
-
-		KThread thread = KThread.currentThread();
-		
-		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
-			returnBool = false;
-		else
-			setPriority(thread, priority + 1);
-
-		Machine.interrupt().restore(intStatus);
-		return returnBool;
-	}
-
-	public boolean decreasePriority() {
-		boolean intStatus = Machine.interrupt().disable(), returnBool = true;
-		
-		KThread thread = KThread.currentThread();
-
-		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
-			returnBool = false;
-		else
-			setPriority(thread, priority - 1);
-		
-		Machine.interrupt().restore(intStatus);
-		return returnBool;
-	}
-
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -123,6 +91,28 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Return the lowest priority a thread can have. A subclass with a
+	 * different range of priorities overrides this and
+	 * <tt>getPriorityMaximum()</tt>, and <tt>setPriority()</tt> and the
+	 * inherited <tt>increasePriority()</tt> and <tt>decreasePriority()</tt>
+	 * use its range.
+	 * 
+	 * @return the minimum priority.
+	 */
+	public int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the highest priority a thread can have.
+	 * 
+	 * @return the maximum priority.
+	 */
+	public int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -139,45 +129,41 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * The waiting threads are kept in a binary max-heap, ordered by effective
+	 * priority and then by the order in which they started waiting. Each
+	 * waiting thread's <tt>Waiter</tt> for this queue records its index in the
+	 * heap, so when its effective priority changes it is moved up or down in
+	 * place instead of being removed and added again.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
-		
-		boolean transferPriority;
-		private java.util.PriorityQueue<ThreadState> waitQ = new java.util.PriorityQueue<ThreadState>(8,new ThreadStateComparator<ThreadState>(this));
-		private KThread lockingThread = null;
-		
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
 		}
 
-		public PriorityQueue() {
-		}
-		/**
-		 * implement by threadstate
-		 */
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).waitForAccess(this);
 		}
-		/**
-		 * implement by threadstate
-		 */
+
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).acquire(this);
 		}
-		/**
-		 * implement by threadstate
-		 */
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (waitQ.isEmpty()) {
-				return null;
-			} else {
-				acquire(waitQ.poll().thread);
 
-				return lockingThread;
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				// nobody else wants the resource, so nobody holds it now
+				release();
+				return null;
 			}
+
+			next.acquire(this);
+			return next.thread;
 		}
 
 		/**
@@ -187,35 +173,232 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			return waitQ.peek();
+			return (size == 0) ? null : heap[0].state;
 		}
 
 		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(" " + heap[i].state.thread + " ("
+						+ heap[i].state.getEffectivePriority() + ")");
+			System.out.println();
 		}
-		
-		protected class ThreadStateComparator<T extends ThreadState> implements Comparator<T> {
-			private nachos.threads.PriorityScheduler.PriorityQueue priorityQueue;
-			protected ThreadStateComparator(nachos.threads.PriorityScheduler.PriorityQueue wq) {
-				priorityQueue = wq;
+
+		/**
+		 * Return the priority this queue donates to the thread holding it: the
+		 * highest effective priority of any waiting thread, if this queue
+		 * transfers priority.
+		 * 
+		 * @return the priority donated by this queue.
+		 */
+		int getDonation() {
+			return donation;
+		}
+
+		/**
+		 * Take the resource away from the thread holding it, which no longer
+		 * receives this queue's donation.
+		 */
+		void release() {
+			if (holder == null)
+				return;
+
+			ThreadState previous = holder;
+			holder = null;
+
+			if (previous.acquired.remove(this))
+				previous.updateEffectivePriority();
+		}
+
+		/**
+		 * Return a new place in this queue for a thread that is about to wait
+		 * for it.
+		 */
+		Waiter newWaiter(ThreadState state) {
+			return new Waiter(state, this);
+		}
+
+		void add(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			if (size == heap.length) {
+				Waiter[] newHeap = new Waiter[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
 			}
-			/**
-			 * define a comparator, sorted by priority, if they are equal, then sorted by the time of 
-			 * their joining
-			 */
-			@Override
-			public int compare(T o1, T o2) {
-				int effprio1 = o1.getEffectivePriority(), effprio2 = o2.getEffectivePriority();
-				if (effprio1 > effprio2) {
-					return -1;
-				} else if (effprio1 < effprio2) {
-					return 1;
-				} else {
-					long wait1 = o1.waiting.get(priorityQueue), wait2 = o2.waiting.get(priorityQueue);
-					return (int) (wait1-wait2);
-				}
+
+			waiter.priority = waiter.state.effectivePriority;
+			waiter.waitOrder = numAdded++;
+			siftUp(size++, waiter);
+
+			updateDonation();
+		}
+
+		void remove(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			int index = waiter.index;
+			Waiter last = heap[--size];
+			heap[size] = null;
+
+			if (last != waiter) {
+				siftDown(index, last);
+				if (last.index == index)
+					siftUp(index, last);
+			}
+
+			waiter.index = -1;
+
+			updateDonation();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to its
+		 * new place in the heap.
+		 */
+		void update(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			waiter.priority = waiter.state.effectivePriority;
+
+			int index = waiter.index;
+			siftUp(index, waiter);
+			if (waiter.index == index)
+				siftDown(index, waiter);
+
+			updateDonation();
+		}
+
+		/**
+		 * Recompute the donation, and pass any change on to the holder, which
+		 * passes it on to the holder of the queue it is waiting for, and so
+		 * on down the chain.
+		 */
+		void updateDonation() {
+			if (!transferPriority)
+				return;
+
+			int newDonation = computeDonation();
+			if (newDonation == donation)
+				return;
+
+			donation = newDonation;
+			if (holder != null)
+				holder.updateEffectivePriority();
+		}
+
+		/**
+		 * Return the priority the waiting threads donate to the holder: that
+		 * of the first of them.
+		 * 
+		 * @return the donation.
+		 */
+		protected int computeDonation() {
+			return (size == 0) ? priorityMinimum : heap[0].priority;
+		}
+
+		private boolean before(Waiter a, Waiter b) {
+			if (a.priority != b.priority)
+				return a.priority > b.priority;
+			else
+				return a.waitOrder < b.waitOrder;
+		}
+
+		private void siftUp(int index, Waiter waiter) {
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (!before(waiter, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
 			}
-			
+
+			place(index, waiter);
 		}
+
+		private void siftDown(int index, Waiter waiter) {
+			int half = size >>> 1;
+			while (index < half) {
+				int child = 2 * index + 1;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], waiter))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, waiter);
+		}
+
+		private void place(int index, Waiter waiter) {
+			heap[index] = waiter;
+			waiter.index = index;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer priority from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread that last acquired this queue, if it still holds it. */
+		protected ThreadState holder = null;
+
+		private Waiter[] heap = new Waiter[8];
+
+		private int size = 0;
+
+		private long numAdded = 0;
+
+		private int donation = priorityMinimum;
+	}
+
+	/**
+	 * The place of a thread in one of the queues it is waiting for. A thread
+	 * may wait for several queues at once, for example a condition variable
+	 * and a timeout, and has a separate place, with its own position and wait
+	 * order, in each of them.
+	 */
+	protected class Waiter {
+		/**
+		 * Allocate a new <tt>Waiter</tt> for a thread about to wait for a
+		 * queue.
+		 * 
+		 * @param state
+		 *            the scheduling state of the waiting thread.
+		 * @param queue
+		 *            the queue it is waiting for.
+		 */
+		public Waiter(ThreadState state, PriorityQueue queue) {
+			this.state = state;
+			this.queue = queue;
+		}
+
+		/** The scheduling state of the waiting thread. */
+		protected ThreadState state;
+		/** The queue it is waiting for. */
+		protected PriorityQueue queue;
+
+		/** The index of this waiter in the queue's heap, or -1. */
+		int index = -1;
+
+		/**
+		 * The effective priority of the thread as of its last move in the
+		 * heap, kept here so that comparing two waiters does not have to
+		 * look at their threads.
+		 */
+		int priority;
+
+		/** When the thread started waiting, relative to other waiters. */
+		long waitOrder;
+
+		/** The thread's place in the next queue it is waiting for, if any. */
+		Waiter nextWaiter = null;
 	}
 
 	/**
@@ -226,17 +409,6 @@ public class PriorityScheduler extends Scheduler {
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
-
-		/** The thread with which this object is associated. */
-		protected KThread thread;
-		/** The priority of the associated thread. */
-		protected int priority;
-		protected int effprio;
-		
-		private PriorityQueue acquired = new PriorityQueue();
-		
-		public HashMap<nachos.threads.PriorityScheduler.PriorityQueue,Long> waiting = new HashMap<nachos.threads.PriorityScheduler.PriorityQueue,Long>();
-		
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -244,29 +416,18 @@ public class PriorityScheduler extends Scheduler {
 		 * @param thread
 		 *            the thread this state belongs to.
 		 */
-		ThreadState(KThread thread) {
+		public ThreadState(KThread thread) {
 			this.thread = thread;
-			effprio = priorityDefault;
+
 			setPriority(priorityDefault);
 		}
 
-		/**
-		 * Release this priority queue from the resources this ThreadState has locked.
-		 * <p>
-		 * This is the only time the effective priority of a thread can go down and needs a full recalculation.
-		 * <p>
-		 * We can detect if this exists if the top effective priority of the queue we are release is equal to this current effective priority.
-		 * If it is less than (it cannot be greater by definition), then we know that something else is contributing to the effective priority of <tt>this</tt>.
-		 * @param priorityQueue
-		 */
-		
-
 		/**
 		 * Return the priority of the associated thread.
 		 * 
 		 * @return the priority of the associated thread.
 		 */
-		int getPriority() {
+		public int getPriority() {
 			return priority;
 		}
 
@@ -275,51 +436,49 @@ public class PriorityScheduler extends Scheduler {
 		 * 
 		 * @return the effective priority of the associated thread.
 		 */
-		int getEffectivePriority() {
-			return effprio;
+		public int getEffectivePriority() {
+			return effectivePriority;
 		}
 
 		/**
-		 * Set the priority of the associated thread to the specified value. <p>
-		 * This method assumes the priority has changed. Protection is from PriorityScheduler class calling this.
+		 * Set the priority of the associated thread to the specified value.
+		 * 
 		 * @param priority
 		 *            the new priority.
 		 */
-		void setPriority(int priority) {
+		public void setPriority(int priority) {
 			this.priority = priority;
 			updateEffectivePriority();
 		}
+
 		/**
-		 * update the effective priority, it will invoked by acquire.
-		 * use the priority of the top of the priority queue
+		 * Recompute the effective priority: the larger of the thread's own
+		 * priority and the donations of the queues it holds.
 		 */
 		protected void updateEffectivePriority() {
-			for (PriorityQueue wq : waiting.keySet())
-				wq.waitQ.remove(this);
-			int temp = priority;
-			// give the top priority
-			if (acquired.transferPriority) {
-				ThreadState topTS = acquired.waitQ.peek();
-				if (topTS != null) {
-					int topPQ_AP = topTS.getEffectivePriority();
-			
-					if (topPQ_AP > temp)
-						temp = topPQ_AP;
-				}
-			}
-			
-			
-			boolean ifTransfer = temp != effprio;
-			
-			effprio = temp;
-			for (PriorityQueue wq : waiting.keySet())
-				wq.waitQ.add(this);
-
-			if (ifTransfer)
-				for (PriorityQueue wq : waiting.keySet()) {
-					if (wq.transferPriority && wq.lockingThread != null)
-						getThreadState(wq.lockingThread).updateEffectivePriority();
-				}
+			int newPriority = priority;
+			for (int i = 0; i < acquired.size(); i++)
+				newPriority = Math.max(newPriority, acquired.get(i)
+						.getDonation());
+
+			setEffectivePriority(newPriority);
+		}
+
+		/**
+		 * Change the effective priority. If it changes, the thread moves
+		 * within every queue it is waiting for, which may in turn change the
+		 * donation to the holder of each.
+		 * 
+		 * @param newPriority
+		 *            the new effective priority.
+		 */
+		protected void setEffectivePriority(int newPriority) {
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+			for (Waiter w = waiting; w != null; w = w.nextWaiter)
+				w.queue.update(w);
 		}
 
 		/**
@@ -329,24 +488,19 @@ public class PriorityScheduler extends Scheduler {
 		 * guarded by <tt>waitQueue</tt>. This method is only called if the
 		 * associated thread cannot immediately obtain access.
 		 * 
-		 * @param priorityQ
+		 * @param waitQueue
 		 *            the queue that the associated thread is now waiting on.
 		 * 
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
-		void waitForAccess(PriorityQueue waitQueue) {
-			if (!waiting.containsKey(waitQueue)) {
-				
-				
-				waiting.put(waitQueue, Machine.timer().getTime());
-				
-				
-				waitQueue.waitQ.add(this);
-				
-				if (waitQueue.lockingThread != null) {
-					getThreadState(waitQueue.lockingThread).updateEffectivePriority();
-				}
-			}
+		public void waitForAccess(PriorityQueue waitQueue) {
+			if (getWaiter(waitQueue) != null)
+				return;
+
+			Waiter waiter = waitQueue.newWaiter(this);
+			waiter.nextWaiter = waiting;
+			waiting = waiter;
+			waitQueue.add(waiter);
 		}
 
 		/**
@@ -359,18 +513,83 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#acquire
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
-		void acquire(PriorityQueue waitQueue) {
-			
-			waitQueue.waitQ.remove(this);
-			
-			waitQueue.lockingThread = this.thread;
-			acquired=waitQueue;
-			
-			waiting.remove(waitQueue);
-			
-			updateEffectivePriority();
+		public void acquire(PriorityQueue waitQueue) {
+			waitQueue.release();
+
+			Waiter waiter = removeWaiter(waitQueue);
+			if (waiter != null)
+				waitQueue.remove(waiter);
+
+			waitQueue.holder = this;
+
+			if (waitQueue.transferPriority) {
+				acquired.add(waitQueue);
+				updateEffectivePriority();
+			}
 		}
+
+		/**
+		 * Return the place of this thread in the specified queue.
+		 * 
+		 * @param waitQueue
+		 *            a queue.
+		 * @return this thread's place in the queue, or <tt>null</tt> if it is
+		 *         not waiting for it.
+		 */
+		protected Waiter getWaiter(PriorityQueue waitQueue) {
+			Waiter waiter = waiting;
+			while (waiter != null && waiter.queue != waitQueue)
+				waiter = waiter.nextWaiter;
+
+			return waiter;
+		}
+
+		/**
+		 * Remove the place of this thread in the specified queue from its
+		 * list, and return it.
+		 */
+		private Waiter removeWaiter(PriorityQueue waitQueue) {
+			Waiter previous = null, waiter = waiting;
+			while (waiter != null && waiter.queue != waitQueue) {
+				previous = waiter;
+				waiter = waiter.nextWaiter;
+			}
+
+			if (waiter != null) {
+				if (previous == null)
+					waiting = waiter.nextWaiter;
+				else
+					previous.nextWaiter = waiter.nextWaiter;
+				waiter.nextWaiter = null;
+			}
+
+			return waiter;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The priority of the associated thread. */
+		protected int priority;
+		/** The effective priority of the associated thread. */
+		protected int effectivePriority = priorityMinimum - 1;
+
+		/**
+		 * The queues this thread holds that transfer priority, each of which
+		 * donates the priority of its first waiting thread. A thread rarely
+		 * holds more than a few.
+		 */
+		protected ArrayList<PriorityQueue> acquired = new ArrayList<PriorityQueue>(
+				2);
+
+		/**
+		 * The place of this thread in the last queue it started waiting for,
+		 * if any, which links to its places in the others. A thread rarely
+		 * waits for more than one or two queues, and following a short list
+		 * is cheaper than going through a collection.
+		 */
+		protected Waiter waiting = null;
 	}
+
 	/**
 	 * create 4 thread.
 	 * add the first two threads into scheduler.
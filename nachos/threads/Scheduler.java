@@ -129,26 +129,118 @@ public abstract class Scheduler {
 		setPriority(KThread.currentThread(), priority);
 	}
 
+	/**
+	 * Return the lowest priority a thread can have. A scheduler with
+	 * priorities overrides this and <tt>getPriorityMaximum()</tt>, and
+	 * <tt>increasePriority()</tt> and <tt>decreasePriority()</tt> keep
+	 * within its range. By default every thread has priority 0.
+	 * 
+	 * @return the minimum priority.
+	 */
+	public int getPriorityMinimum() {
+		return 0;
+	}
+
+	/**
+	 * Return the highest priority a thread can have.
+	 * 
+	 * @return the maximum priority.
+	 */
+	public int getPriorityMaximum() {
+		return 0;
+	}
+
 	/**
 	 * If possible, raise the priority of the current thread in some
-	 * scheduler-dependent way.
+	 * scheduler-dependent way. By default, add one to its priority, unless it
+	 * is already <tt>getPriorityMaximum()</tt>.
 	 * 
 	 * @return <tt>true</tt> if the scheduler was able to increase the current
 	 * thread's priority.
 	 */
 	public boolean increasePriority() {
-		return false;
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == getPriorityMaximum()) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
 	}
 
 	/**
 	 * If possible, lower the priority of the current thread user in some
 	 * scheduler-dependent way, preferably by the same amount as would a call to
-	 * <tt>increasePriority()</tt>.
+	 * <tt>increasePriority()</tt>. By default, subtract one from its priority,
+	 * unless it is already <tt>getPriorityMinimum()</tt>.
 	 * 
 	 * @return <tt>true</tt> if the scheduler was able to decrease the current
 	 * thread's priority.
 	 */
 	public boolean decreasePriority() {
-		return false;
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == getPriorityMinimum()) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Called by <tt>KThread.ready()</tt> just before the specified thread is
+	 * added to the ready queue, with interrupts disabled. If it is the current
+	 * thread, it is yielding the processor; otherwise it was blocked, or is new.
+	 * The idle thread is never added to the ready queue, so this is never
+	 * called for it.
+	 * 
+	 * <p>
+	 * Schedulers that account for the time threads spend running or waiting
+	 * to run may override this. By default it does nothing.
+	 * 
+	 * @param thread the thread that is ready.
+	 */
+	public void readyThread(KThread thread) {
+	}
+
+	/**
+	 * Called by <tt>KThread.restoreState()</tt> when the specified thread
+	 * starts running, with interrupts disabled. The thread that was running
+	 * before it, if it did not yield through <tt>readyThread()</tt>, has
+	 * blocked or finished.
+	 * 
+	 * <p>
+	 * Schedulers that account for the time threads spend running or waiting
+	 * to run may override this. By default it does nothing.
+	 * 
+	 * @param thread the thread now running.
+	 */
+	public void runningThread(KThread thread) {
+	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * after it has woken any sleeping threads that are due, to decide whether
+	 * the current thread should be preempted.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield, which by
+	 * default it always does.
+	 */
+	public boolean timerInterrupt() {
+		return true;
 	}
 }
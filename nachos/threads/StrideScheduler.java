@@ -0,0 +1,438 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor in proportion to each thread's
+ * tickets, like <tt>LotteryScheduler</tt>, but deterministically, so that
+ * over any short run every thread has received close to its share.
+ * 
+ * <p>
+ * Each thread has a <i>stride</i>, inversely proportional to its tickets, and
+ * a <i>pass</i>. A queue dequeues the waiting thread with the lowest pass, and
+ * advances that thread's pass by its stride, so a thread with twice the
+ * tickets is dequeued twice as often. Threads with the same pass are dequeued
+ * in the order they started waiting.
+ * 
+ * <p>
+ * Passes only mean something relative to the queue a thread waits on, so a
+ * thread waiting for several queues has a separate pass in each, and each
+ * queue keeps a global pass, the pass of the last thread it dequeued. A
+ * thread that leaves a queue remembers how far its pass was ahead of the
+ * queue's global pass, and starts that far ahead of the global pass of the
+ * next queue it waits on. In particular, a thread that has been sleeping, for
+ * example in <tt>Alarm.waitUntil()</tt>, rejoins the ready queue where it
+ * left off relative to the threads that kept running, instead of with the old
+ * pass they have long since overtaken, which would let it monopolize the
+ * processor until it caught up.
+ * 
+ * <p>
+ * Tickets are not transferred: like <tt>RoundRobinScheduler</tt>, this
+ * scheduler ignores <tt>transferPriority</tt>.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 * 
+	 * @param transferPriority ignored.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getTickets();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getTickets();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
+
+		getThreadState(thread).setTickets(priority);
+	}
+
+	/**
+	 * Return the fewest tickets a thread can hold.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	public int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the most tickets a thread can hold.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	public int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with one ticket. A thread's stride is this
+	 * divided by its tickets, so even a thread with
+	 * <tt>priorityMaximum</tt> tickets has a stride of several hundred, and
+	 * rounding skews the shares by well under one percent.
+	 */
+	public static final long stride1 = 1L << 40;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return <tt>true</tt> if pass <i>a</i> comes before pass <i>b</i>.
+	 * Passes only ever grow, and may eventually overflow, but the passes of
+	 * threads waiting on the same queue are never more than a stride apart, so
+	 * comparing their difference still orders them correctly.
+	 */
+	private static boolean passBefore(long a, long b) {
+		return a - b < 0;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary
+	 * min-heap, ordered by pass and then by the order in which they started
+	 * waiting.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue() {
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			Waiter next = heap[0];
+			if (passBefore(globalPass, next.pass))
+				globalPass = next.pass;
+
+			// charge the thread for the turn it is about to have
+			next.pass += next.state.stride;
+
+			next.state.acquire(this);
+			return next.state.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			return (size == 0) ? null : heap[0].state;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(" " + heap[i].state.thread + " ("
+						+ (heap[i].pass - globalPass) + ")");
+			System.out.println();
+		}
+
+		void add(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			if (size == heap.length) {
+				Waiter[] newHeap = new Waiter[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			waiter.pass = globalPass + waiter.state.remain;
+			waiter.waitOrder = numAdded++;
+			siftUp(size++, waiter);
+		}
+
+		void remove(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			int index = waiter.index;
+			Waiter last = heap[--size];
+			heap[size] = null;
+
+			if (last != waiter) {
+				siftDown(index, last);
+				if (last.index == index)
+					siftUp(index, last);
+			}
+
+			waiter.state.remain = waiter.pass - globalPass;
+			waiter.index = -1;
+		}
+
+		/**
+		 * Move a waiter whose pass has changed to its new place in the heap.
+		 */
+		void update(Waiter waiter) {
+			Lib.assertTrue(waiter.queue == this);
+
+			int index = waiter.index;
+			siftUp(index, waiter);
+			if (waiter.index == index)
+				siftDown(index, waiter);
+		}
+
+		private boolean before(Waiter a, Waiter b) {
+			if (a.pass != b.pass)
+				return passBefore(a.pass, b.pass);
+			else
+				return a.waitOrder < b.waitOrder;
+		}
+
+		private void siftUp(int index, Waiter waiter) {
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (!before(waiter, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, waiter);
+		}
+
+		private void siftDown(int index, Waiter waiter) {
+			int half = size >>> 1;
+			while (index < half) {
+				int child = 2 * index + 1;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], waiter))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, waiter);
+		}
+
+		private void place(int index, Waiter waiter) {
+			heap[index] = waiter;
+			waiter.index = index;
+		}
+
+		/** The pass of the last thread this queue dequeued. */
+		long globalPass = 0;
+
+		private Waiter[] heap = new Waiter[8];
+
+		private int size = 0;
+
+		private long numAdded = 0;
+	}
+
+	/**
+	 * The place of a thread in a stride queue it is waiting for, with the pass
+	 * it has there.
+	 */
+	protected class Waiter {
+		/**
+		 * Allocate a new <tt>Waiter</tt> for the specified thread in the
+		 * specified queue.
+		 * 
+		 * @param state the waiting thread.
+		 * @param queue the queue it is waiting for.
+		 */
+		public Waiter(ThreadState state, StrideQueue queue) {
+			this.state = state;
+			this.queue = queue;
+		}
+
+		/** The waiting thread. */
+		protected ThreadState state;
+		/** The queue it is waiting for. */
+		protected StrideQueue queue;
+
+		/** The pass of the thread in this queue. */
+		long pass;
+		/** The index of this waiter in the queue's heap. */
+		int index = -1;
+		/** When the thread started waiting, to break ties in pass. */
+		long waitOrder;
+
+		/** The thread's place in the next queue it is waiting for, if any. */
+		Waiter nextWaiter = null;
+	}
+
+	/**
+	 * The scheduling state of a thread: its tickets and stride, and its places
+	 * in the queues it is waiting for, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			setTickets(priorityDefault);
+			remain = stride;
+		}
+
+		/**
+		 * Return the number of tickets the associated thread holds.
+		 * 
+		 * @return the associated thread's tickets.
+		 */
+		public int getTickets() {
+			return tickets;
+		}
+
+		/**
+		 * Give the associated thread a new number of tickets. Its stride
+		 * changes accordingly, and so does the distance it still has to go
+		 * before its next turn in each queue, in proportion.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long newStride = stride1 / tickets;
+
+			if (stride != 0) {
+				double scale = (double) newStride / stride;
+
+				for (Waiter w = waiting; w != null; w = w.nextWaiter) {
+					long left = w.pass - w.queue.globalPass;
+					w.pass = w.queue.globalPass + (long) (left * scale);
+					w.queue.update(w);
+				}
+
+				remain = (long) (remain * scale);
+			}
+
+			this.tickets = tickets;
+			this.stride = newStride;
+		}
+
+		/**
+		 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+		 * the associated thread) is invoked on the specified queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 * 
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			for (Waiter w = waiting; w != null; w = w.nextWaiter) {
+				if (w.queue == waitQueue)
+					return;
+			}
+
+			Waiter waiter = new Waiter(this, waitQueue);
+			waiter.nextWaiter = waiting;
+			waiting = waiter;
+			waitQueue.add(waiter);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>, through <tt>acquire()</tt> or
+		 * <tt>nextThread()</tt>. If it was waiting for the queue, it leaves
+		 * it.
+		 * 
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			Waiter previous = null, waiter = waiting;
+			while (waiter != null && waiter.queue != waitQueue) {
+				previous = waiter;
+				waiter = waiter.nextWaiter;
+			}
+
+			if (waiter == null)
+				return;
+
+			if (previous == null)
+				waiting = waiter.nextWaiter;
+			else
+				previous.nextWaiter = waiter.nextWaiter;
+			waiter.nextWaiter = null;
+
+			waitQueue.remove(waiter);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The number of tickets the associated thread holds. */
+		protected int tickets;
+		/** <tt>stride1</tt> divided by <tt>tickets</tt>. */
+		protected long stride = 0;
+		/**
+		 * How far the pass was ahead of the global pass of the queue the
+		 * thread last left.
+		 */
+		protected long remain;
+
+		/**
+		 * The place of this thread in the last queue it started waiting for,
+		 * if any, linked to its places in the others.
+		 */
+		protected Waiter waiting = null;
+	}
+}
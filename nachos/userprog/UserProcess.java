@@ -87,6 +87,7 @@ public class UserProcess {
 	 */
 	public void restoreState() {
 		Machine.processor().setPageTable(pageTable);
+		Machine.processor().setProfileImage(coff);
 	}
 
 	/**
@@ -763,6 +764,8 @@ public class UserProcess {
 	 * @return the value to be returned to the user.
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		Machine.eventTrace().record(EventTrace.eventSyscall, syscall, pid, a0);
+
 		switch (syscall) {
 		case syscallHalt:
 			return handleHalt();